@@ -0,0 +1,87 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Steve Townsend
+ */
+public class BlockStateTableTest {
+
+    @Test
+    public void testStatesAndFlags() {
+        BlockStateTable blockStates = new BlockStateTable(10);
+        int[] expectedStates = new int[5000];
+        boolean[] expectedFlags = new boolean[5000];
+        Random random = new Random(0);
+        for (int iteration = 0; iteration < 50000; iteration++) {
+            int blockIndex = random.nextInt(expectedStates.length);
+            if (random.nextBoolean()) {
+                int state = random.nextInt(BlockStateTable.Spilled + 1);
+                blockStates.setState(blockIndex, state);
+                expectedStates[blockIndex] = state;
+                if (state == BlockStateTable.Absent || state == BlockStateTable.Spilled) {
+                    expectedFlags[blockIndex] = false;
+                }
+            } else {
+                boolean flag = random.nextBoolean();
+                blockStates.setCachedAhead(blockIndex, flag);
+                expectedFlags[blockIndex] = flag;
+            }
+        }
+        for (int blockIndex = 0; blockIndex < expectedStates.length; blockIndex++) {
+            assertEquals(expectedStates[blockIndex], blockStates.state(blockIndex));
+            assertEquals(expectedFlags[blockIndex], blockStates.isCachedAhead(blockIndex));
+        }
+        assertEquals(BlockStateTable.Absent, blockStates.state(1000000));
+        assertFalse(blockStates.isCachedAhead(-1));
+    }
+
+    @Test
+    public void testClearCachedAhead() {
+        BlockStateTable blockStates = new BlockStateTable(100);
+        for (int blockIndex = 0; blockIndex < 100; blockIndex++) {
+            blockStates.setCachedAhead(blockIndex, true);
+            blockStates.setState(blockIndex, blockIndex % 2 == 0 ? BlockStateTable.Resident : BlockStateTable.Queued);
+        }
+        blockStates.clearCachedAheadNotResident(10, Integer.MAX_VALUE);
+        for (int blockIndex = 0; blockIndex < 100; blockIndex++) {
+            boolean expected = blockIndex < 10 || blockIndex % 2 == 0;
+            assertEquals(expected, blockStates.isCachedAhead(blockIndex));
+        }
+        assertTrue(blockStates.isRequested(1));
+    }
+
+    @Test
+    public void testPurgeClearsCachedAhead() {
+        BlockStateTable blockStates = new BlockStateTable(100);
+        for (int blockIndex = 0; blockIndex < 100; blockIndex++) {
+            blockStates.setCachedAhead(blockIndex, true);
+            blockStates.setState(blockIndex, BlockStateTable.Queued);
+            blockStates.setState(blockIndex, BlockStateTable.Loading);
+            blockStates.setState(blockIndex, BlockStateTable.Resident);
+            assertTrue(blockStates.isCachedAhead(blockIndex));
+            blockStates.setState(blockIndex, blockIndex % 2 == 0 ? BlockStateTable.Spilled : BlockStateTable.Absent);
+            assertFalse(blockStates.isCachedAhead(blockIndex));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+import android.util.Log;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author Steve Townsend
+ */
+public class BlockTableTest {
+    private static final String TAG = "BlockTableTest";
+
+    @Test
+    public void testInsertRemove() {
+        BlockTable blockTable = new BlockTable(8);
+        TreeMap<Integer, CacheBlock> expected = new TreeMap<>();
+        Random random = new Random(0);
+        for (int iteration = 0; iteration < 10000; iteration++) {
+            int blockIndex = random.nextInt(200);
+            if (expected.containsKey(blockIndex)) {
+                assertSame(expected.remove(blockIndex), blockTable.remove(blockIndex));
+            } else {
+                CacheBlock cacheBlock = createBlock(blockIndex);
+                expected.put(blockIndex, cacheBlock);
+                blockTable.put(cacheBlock);
+            }
+            assertEquals(expected.size(), blockTable.size());
+        }
+        for (int blockIndex = 0; blockIndex < 200; blockIndex++) {
+            assertSame(expected.get(blockIndex), blockTable.get(blockIndex));
+            assertSame(expected.get(blockIndex), blockTable.findUnlocked(blockIndex));
+        }
+        blockTable.clear();
+        assertEquals(0, blockTable.size());
+        assertNull(blockTable.get(0));
+    }
+
+    @Test
+    public void testHitPathBenchmark() {
+        // Mirrors the checkForCacheAhead() pattern, a resident window of blocks checked repeatedly.
+        final int ResidentBlocks = 64;
+        final int CacheAhead = 8;
+        final int Reads = 2000000;
+        TreeMap<Integer, CacheBlock> treeMap = new TreeMap<>();
+        BlockTable blockTable = new BlockTable(ResidentBlocks);
+        for (int blockIndex = 0; blockIndex < ResidentBlocks; blockIndex++) {
+            CacheBlock cacheBlock = createBlock(blockIndex);
+            treeMap.put(blockIndex, cacheBlock);
+            blockTable.put(cacheBlock);
+        }
+        // Warm up both before timing.
+        int treeHits = lookupTreeMap(treeMap, Reads / 10, ResidentBlocks, CacheAhead);
+        int tableHits = lookupBlockTable(blockTable, Reads / 10, ResidentBlocks, CacheAhead);
+        assertEquals(treeHits, tableHits);
+
+        long startTime = System.nanoTime();
+        treeHits = lookupTreeMap(treeMap, Reads, ResidentBlocks, CacheAhead);
+        long treeMapTime = System.nanoTime() - startTime;
+        startTime = System.nanoTime();
+        tableHits = lookupBlockTable(blockTable, Reads, ResidentBlocks, CacheAhead);
+        long blockTableTime = System.nanoTime() - startTime;
+        assertEquals(treeHits, tableHits);
+        int lookups = Reads * CacheAhead;
+        Log.d(TAG, "TreeMap: " + (treeMapTime / lookups) + "ns/lookup BlockTable: " + (blockTableTime / lookups) + "ns/lookup");
+    }
+
+    private int lookupTreeMap(TreeMap<Integer, CacheBlock> treeMap, int reads, int residentBlocks, int cacheAhead) {
+        int hits = 0;
+        for (int read = 0; read < reads; read++) {
+            int blockIndex = read % residentBlocks;
+            for (int ahead = 1; ahead <= cacheAhead; ahead++) {
+                if (treeMap.keySet().contains(blockIndex + ahead)) {
+                    hits++;
+                }
+            }
+        }
+        return hits;
+    }
+
+    private int lookupBlockTable(BlockTable blockTable, int reads, int residentBlocks, int cacheAhead) {
+        int hits = 0;
+        for (int read = 0; read < reads; read++) {
+            int blockIndex = read % residentBlocks;
+            for (int ahead = 1; ahead <= cacheAhead; ahead++) {
+                if (blockTable.contains(blockIndex + ahead)) {
+                    hits++;
+                }
+            }
+        }
+        return hits;
+    }
+
+    private CacheBlock createBlock(int blockIndex) {
+        CacheBlock cacheBlock = new HeapCacheBlock(16);
+        cacheBlock.blockIndex = blockIndex;
+        return cacheBlock;
+    }
+}
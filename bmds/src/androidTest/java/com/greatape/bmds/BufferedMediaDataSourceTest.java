@@ -14,9 +14,12 @@
  */
 package com.greatape.bmds;
 
+import android.content.ComponentCallbacks2;
 import android.os.Build;
+import android.support.annotation.NonNull;
 import android.support.annotation.RequiresApi;
 import android.util.Log;
+import android.util.SparseIntArray;
 
 import com.greatape.bmds.dummysource.DummyDataInputSource;
 import com.greatape.bmds.dummysource.DummyStreamSource;
@@ -29,8 +32,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 import static org.junit.Assert.assertEquals;
 
@@ -42,10 +51,15 @@ public class BufferedMediaDataSourceTest {
     private final static long[] sTestLengths1 = {1, 10, 1000, 10000, 1000000, 10000000};
     private final static long[] sTestLengths2 = {1234, 123456, 1234567};
     private static final String TAG = "BufMediaDataSrcTest";
+    // How many times slower hits on resident blocks may be while another thread keeps the cache
+    // loading, allowing for sharing the CPU with it.
+    private static final int HitPathContentionLimit = 4;
 
     private DummyStreamSource.Delay mPerCallDelay;
     private DummyStreamSource.Delay mLoadDelay;
     private DummyStreamSource.Delay mSkipDelay;
+    private String mTypeName = "Dummy";
+    private boolean mOffHeapBuffers;
 
     enum TestMode {
         Sequential,
@@ -72,6 +86,23 @@ public class BufferedMediaDataSourceTest {
         }
     }
 
+    @Test
+    public void testOffHeapBuffers() throws Exception {
+        // The same reads with the blocks in direct buffers, loaded and copied out through their
+        // staging arrays.
+        mOffHeapBuffers = true;
+        mTypeName = "DummyOffHeap";
+        for(long streamLen : sTestLengths1) {
+            doTest(streamLen, false);
+            doTest(streamLen, true);
+        }
+        mPerCallDelay = new DummyStreamSource.Delay(1, 2);
+        for(long streamLen : sTestLengths2) {
+            doMultiThreadTest(streamLen, 4, false);
+            doMultiThreadTest(streamLen, 4, true);
+        }
+    }
+
     @Test
     public void testMultipleThreads() throws Exception {
         final int MaxThreads = 16;
@@ -86,6 +117,652 @@ public class BufferedMediaDataSourceTest {
         }
     }
 
+    @Test
+    public void testParallelLoads() throws Exception {
+        mTypeName = "DummyParallel";
+        BufferedMediaDataSource.setLoadConcurrency(mTypeName, 4);
+        mPerCallDelay = new DummyStreamSource.Delay(1, 2);
+        mLoadDelay = new DummyStreamSource.Delay(4, 8);
+        mSkipDelay = new DummyStreamSource.Delay(1, 3);
+        for(long streamLen : sTestLengths2) {
+            doMultiThreadTest(streamLen, 4, false);
+            doMultiThreadTest(streamLen, 4, true);
+        }
+    }
+
+    @Test
+    public void testHitPathContention() throws Exception {
+        // One reader making MediaPlayer sized reads across a few resident blocks while the loader
+        // keeps inserting and purging other blocks of the same cache.
+        final long streamLen = 32 * 1024 * 1024;
+        final int ReadLen = 4096;
+        final int Reads = 200000;
+        final int ReadBlocks = 4;
+        // Loads that mostly wait on the source, so the loader isn't taking much of the CPU.
+        mPerCallDelay = new DummyStreamSource.Delay(2, 3);
+        final BufferedMediaDataSource dataSource = createDataSource(streamLen, false);
+        final int bufferSize = dataSource.getBufferSize();
+        dataSource.pin(0, ReadBlocks * bufferSize);
+        byte[] buffer = new byte[ReadLen];
+        // Warm up before timing.
+        readBlocksRepeatedly(dataSource, ReadBlocks, buffer, Reads / 10);
+        long startTime = System.nanoTime();
+        readBlocksRepeatedly(dataSource, ReadBlocks, buffer, Reads);
+        long idleTime = System.nanoTime() - startTime;
+
+        final AtomicBoolean stopLoading = new AtomicBoolean();
+        Thread loaderThread = new Thread(() -> {
+            long position = ReadBlocks * bufferSize;
+            while (!stopLoading.get()) {
+                dataSource.prefetch(position, 16L * bufferSize, BufferedMediaDataSource.Priority.High);
+                position += 16L * bufferSize;
+                if (position >= streamLen) {
+                    position = ReadBlocks * bufferSize;
+                }
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "Loader");
+        loaderThread.start();
+        startTime = System.nanoTime();
+        readBlocksRepeatedly(dataSource, ReadBlocks, buffer, Reads);
+        long loadingTime = System.nanoTime() - startTime;
+        stopLoading.set(true);
+        loaderThread.join();
+        dataSource.unpin(0, ReadBlocks * bufferSize);
+        dataSource.close();
+        SparseIntArray loadCounts = dataSource.getReadStats().loadCounts();
+        Log.d(TAG, "Hit path idle: " + (idleTime / Reads) + "ns/read with loader: " + (loadingTime / Reads) + "ns/read, " + totalLoads(dataSource) + " loads");
+        for (int blockIndex = 0; blockIndex < ReadBlocks; blockIndex++) {
+            assertEquals(1, loadCounts.get(blockIndex));
+        }
+        // Reads only lock for the bookkeeping when moving on to the next block, so apart from
+        // sharing the CPU with the loader they shouldn't be held up by it.
+        assertTrue("Hit path idle: " + idleTime + "ns with loader: " + loadingTime + "ns", loadingTime < HitPathContentionLimit * idleTime);
+    }
+
+    @Test
+    public void testReadAtAsync() throws Exception {
+        // A single thread keeping reads outstanding across several sources at once.
+        final int NumSources = 4;
+        final int ReadsPerSource = 16;
+        final long streamLen = 1234567;
+        mPerCallDelay = new DummyStreamSource.Delay(1, 2);
+        mLoadDelay = new DummyStreamSource.Delay(4, 8);
+        BufferedMediaDataSource[] dataSources = new BufferedMediaDataSource[NumSources];
+        for (int source = 0; source < NumSources; source++) {
+            dataSources[source] = createDataSource(streamLen, (source & 1) != 0);
+        }
+        final CountDownLatch completeLatch = new CountDownLatch(NumSources * ReadsPerSource);
+        final AtomicInteger failures = new AtomicInteger();
+        Random random = new Random(0);
+        for (int read = 0; read < ReadsPerSource; read++) {
+            for (BufferedMediaDataSource dataSource : dataSources) {
+                // Some reads span blocks and some run off the end of the source.
+                final int readLen = 1 + random.nextInt(300000);
+                final int index = random.nextInt((int) streamLen);
+                final byte[] buffer = new byte[readLen];
+                dataSource.readAtAsync(index, buffer, 0, readLen, new BufferedMediaDataSource.ReadListener() {
+                    @Override
+                    public void onReadComplete(int bytesRead) {
+                        int expectedLen = (int) Math.min(readLen, streamLen - index);
+                        byte[] expected = new byte[expectedLen];
+                        try {
+                            DummyStreamSource expectedValues = new DummyStreamSource(streamLen);
+                            expectedValues.seek(index);
+                            expectedValues.read(expected, 0, expectedLen);
+                        } catch (IOException e) {
+                            failures.incrementAndGet();
+                        }
+                        if (bytesRead != expectedLen || !Arrays.equals(expected, Arrays.copyOf(buffer, expectedLen))) {
+                            Log.e(TAG, "Async read mismatch at " + index + " len " + readLen + " read " + bytesRead);
+                            failures.incrementAndGet();
+                        }
+                        completeLatch.countDown();
+                    }
+
+                    @Override
+                    public void onReadFailed(IOException exception) {
+                        Log.e(TAG, "Async read failed at " + index, exception);
+                        failures.incrementAndGet();
+                        completeLatch.countDown();
+                    }
+                });
+            }
+        }
+        assertTrue(completeLatch.await(60, TimeUnit.SECONDS));
+        assertEquals(0, failures.get());
+        for (BufferedMediaDataSource dataSource : dataSources) {
+            dataSource.close();
+        }
+    }
+
+    @Test
+    public void testReadAtAsyncCompletesOnce() throws Exception {
+        // Many threads issuing async reads into a tiny cache with several load threads, so loads
+        // often complete while the thread that queued them is still returning.
+        final int NumThreads = 8;
+        final int ReadsPerThread = 5000;
+        final long streamLen = 64 * 1024;
+        mTypeName = "DummyAsync";
+        BufferedMediaDataSource.setLoadConcurrency(mTypeName, 4);
+        BufferedMediaDataSource.BufferConfig bufferConfig = new BufferedMediaDataSource.BufferConfig();
+        bufferConfig.bufferSize = 1024;
+        bufferConfig.maxUsedBuffers = 4;
+        bufferConfig.minReservedBuffers = 2;
+        bufferConfig.cacheAheadCount = 1;
+        final BufferedMediaDataSource dataSource = createDataSource(streamLen, false, bufferConfig);
+        final CountDownLatch completeLatch = new CountDownLatch(NumThreads * ReadsPerThread);
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger repeatCalls = new AtomicInteger();
+        Thread[] threads = new Thread[NumThreads];
+        for (int thread = 0; thread < NumThreads; thread++) {
+            final Random random = new Random(thread);
+            threads[thread] = new Thread(() -> {
+                for (int read = 0; read < ReadsPerThread; read++) {
+                    final int readLen = 1 + random.nextInt(3000);
+                    final int index = random.nextInt((int) streamLen);
+                    final AtomicInteger calls = new AtomicInteger();
+                    dataSource.readAtAsync(index, new byte[readLen], 0, readLen, new BufferedMediaDataSource.ReadListener() {
+                        @Override
+                        public void onReadComplete(int bytesRead) {
+                            if (bytesRead != Math.min(readLen, streamLen - index)) {
+                                failures.incrementAndGet();
+                            }
+                            called();
+                        }
+
+                        @Override
+                        public void onReadFailed(IOException exception) {
+                            failures.incrementAndGet();
+                            called();
+                        }
+
+                        private void called() {
+                            if (calls.incrementAndGet() > 1) {
+                                repeatCalls.incrementAndGet();
+                            } else {
+                                completeLatch.countDown();
+                            }
+                        }
+                    });
+                }
+            });
+            threads[thread].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(completeLatch.await(60, TimeUnit.SECONDS));
+        dataSource.close();
+        assertEquals(0, repeatCalls.get());
+        assertEquals(0, failures.get());
+    }
+
+    @Test
+    public void testCoalescedLoads() throws Exception {
+        // Readers all missing the same block, some after it was queued to cache ahead, share one load.
+        final int NumReaders = 8;
+        final long streamLen = 1234567;
+        mPerCallDelay = new DummyStreamSource.Delay(20, 30);
+        final BufferedMediaDataSource dataSource = createDataSource(streamLen, false);
+        final int bufferSize = dataSource.getBufferSize();
+        dataSource.prefetch(2L * bufferSize, bufferSize, BufferedMediaDataSource.Priority.Low);
+        final CountDownLatch completeLatch = new CountDownLatch(NumReaders);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int reader = 0; reader < NumReaders; reader++) {
+            final int readOffset = reader * 100;
+            new Thread(() -> {
+                try {
+                    byte[] buffer = new byte[100];
+                    if (dataSource.readAt(2L * bufferSize + readOffset, buffer, 0, buffer.length) != buffer.length) {
+                        failures.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    failures.incrementAndGet();
+                }
+                completeLatch.countDown();
+            }).start();
+        }
+        assertTrue(completeLatch.await(60, TimeUnit.SECONDS));
+        dataSource.close();
+        assertEquals(0, failures.get());
+        assertEquals(1, dataSource.getReadStats().loadCounts().get(2));
+    }
+
+    @Test
+    public void testCancelPrefetch() throws Exception {
+        // Cancelled prefetches never reach the source, while the rest of the queue still loads.
+        final int bufferSize = 8192;
+        mTypeName = "DummyCancel";
+        BufferedMediaDataSource.BufferConfig bufferConfig = new BufferedMediaDataSource.BufferConfig();
+        bufferConfig.bufferSize = bufferSize;
+        bufferConfig.cacheAheadCount = 0;
+        // Holds the load thread while the queue is set up, then stops it again once the low
+        // priority prefetch has loaded its first block, after any normal priority ones left.
+        DummyStreamSource.ReadGate startGate = new DummyStreamSource.ReadGate(0);
+        DummyStreamSource.ReadGate lowGate = new DummyStreamSource.ReadGate(31 * bufferSize);
+        AtomicLong bytesRead = new AtomicLong();
+        BufferedMediaDataSource dataSource = createCountingDataSource(100 * bufferSize, bufferConfig, bytesRead, Integer.MAX_VALUE, startGate, lowGate);
+        dataSource.prefetch(0, bufferSize, BufferedMediaDataSource.Priority.High);
+        assertTrue(startGate.awaitReached(10000));
+        dataSource.prefetch(10 * bufferSize, 10 * bufferSize, BufferedMediaDataSource.Priority.Normal);
+        dataSource.prefetch(30 * bufferSize, 2 * bufferSize, BufferedMediaDataSource.Priority.Low);
+        dataSource.cancelPrefetch(10 * bufferSize, 10 * bufferSize);
+        startGate.open();
+        assertTrue(lowGate.awaitReached(10000));
+        // Only blocks 0 and 30 loaded so far.
+        assertEquals(2 * bufferSize, bytesRead.get());
+        lowGate.open();
+        dataSource.close();
+        SparseIntArray loadCounts = dataSource.getReadStats().loadCounts();
+        for (int blockIndex = 10; blockIndex < 20; blockIndex++) {
+            assertEquals(0, loadCounts.get(blockIndex));
+        }
+        assertEquals(1, loadCounts.get(30));
+    }
+
+    @Test
+    public void testPrefetchPriority() throws Exception {
+        // Prefetches queued together load high priority first and low priority last, whatever
+        // order they were asked for in.
+        final int bufferSize = 8192;
+        mTypeName = "DummyPriority";
+        BufferedMediaDataSource.BufferConfig bufferConfig = new BufferedMediaDataSource.BufferConfig();
+        bufferConfig.bufferSize = bufferSize;
+        bufferConfig.cacheAheadCount = 0;
+        DummyStreamSource.ReadGate startGate = new DummyStreamSource.ReadGate(0);
+        // Reached by whichever of the normal or low priority prefetches loads first.
+        DummyStreamSource.ReadGate laterGate = new DummyStreamSource.ReadGate(40 * bufferSize);
+        AtomicLong bytesRead = new AtomicLong();
+        BufferedMediaDataSource dataSource = createCountingDataSource(100 * bufferSize, bufferConfig, bytesRead, Integer.MAX_VALUE, startGate, laterGate);
+        dataSource.prefetch(0, bufferSize, BufferedMediaDataSource.Priority.High);
+        assertTrue(startGate.awaitReached(10000));
+        dataSource.prefetch(50 * bufferSize, 2 * bufferSize, BufferedMediaDataSource.Priority.Low);
+        dataSource.prefetch(40 * bufferSize, 2 * bufferSize, BufferedMediaDataSource.Priority.Normal);
+        dataSource.prefetch(10 * bufferSize, 2 * bufferSize, BufferedMediaDataSource.Priority.High);
+        startGate.open();
+        assertTrue(laterGate.awaitReached(10000));
+        assertEquals(40 * bufferSize, laterGate.reachedIndex());
+        // Block 0 and the high priority blocks are in.
+        assertEquals(3 * bufferSize, bytesRead.get());
+        laterGate.open();
+        dataSource.close();
+    }
+
+    @Test
+    public void testBlockingLoadGoesFirst() throws Exception {
+        // A read waiting for its block is loaded ahead of queued cache ahead loads, and those load
+        // in deadline order, so the nearer blocks first even when asked for later.
+        final int bufferSize = 8192;
+        final int ReadBlock = 60;
+        mTypeName = "DummyDeadline";
+        BufferedMediaDataSource.BufferConfig bufferConfig = new BufferedMediaDataSource.BufferConfig();
+        bufferConfig.bufferSize = bufferSize;
+        bufferConfig.cacheAheadCount = 0;
+        DummyStreamSource.ReadGate startGate = new DummyStreamSource.ReadGate(0);
+        // Reached by the first load after the start, which should be the read's.
+        DummyStreamSource.ReadGate firstGate = new DummyStreamSource.ReadGate(20 * bufferSize);
+        // Reached by block 21 if block 20 went before the earlier queued blocks 30 and 31.
+        DummyStreamSource.ReadGate deadlineGate = new DummyStreamSource.ReadGate(21 * bufferSize);
+        AtomicLong bytesRead = new AtomicLong();
+        final BufferedMediaDataSource dataSource = createCountingDataSource(100 * bufferSize, bufferConfig, bytesRead, Integer.MAX_VALUE,
+                startGate, firstGate, deadlineGate);
+        dataSource.prefetch(0, bufferSize, BufferedMediaDataSource.Priority.High);
+        assertTrue(startGate.awaitReached(10000));
+        dataSource.prefetch(30 * bufferSize, 2 * bufferSize, BufferedMediaDataSource.Priority.Normal);
+        dataSource.prefetch(20 * bufferSize, 2 * bufferSize, BufferedMediaDataSource.Priority.Normal);
+        final AtomicInteger readLen = new AtomicInteger();
+        Thread readerThread = new Thread(() -> {
+            byte[] buffer = new byte[100];
+            try {
+                readLen.set(dataSource.readAt((long) ReadBlock * bufferSize, buffer, 0, buffer.length));
+            } catch (IOException e) {
+                Log.e(TAG, "Read failed", e);
+            }
+        }, "Reader");
+        readerThread.start();
+        // Waiting for the load it's queued.
+        long timeout = System.currentTimeMillis() + 10000;
+        while (readerThread.getState() != Thread.State.WAITING && System.currentTimeMillis() < timeout) {
+            Thread.yield();
+        }
+        assertEquals(Thread.State.WAITING, readerThread.getState());
+        startGate.open();
+        assertTrue(firstGate.awaitReached(10000));
+        assertEquals((long) ReadBlock * bufferSize, firstGate.reachedIndex());
+        firstGate.open();
+        readerThread.join();
+        assertEquals(100, readLen.get());
+        assertTrue(deadlineGate.awaitReached(10000));
+        assertEquals(21 * bufferSize, deadlineGate.reachedIndex());
+        // Blocks 0, the read's and 20.
+        assertEquals(3 * bufferSize, bytesRead.get());
+        deadlineGate.open();
+        dataSource.close();
+    }
+
+    @Test
+    public void testFairLoadSharing() throws Exception {
+        // A source with a big prefetch queued first mustn't hold up a second source sharing its
+        // LoadRunner until it's done, they take turns.
+        final int HeavyBlocks = 190;
+        final int LightBlocks = 20;
+        final int bufferSize = 8192;
+        mTypeName = "DummyFair";
+        mPerCallDelay = new DummyStreamSource.Delay(5, 5);
+        BufferedMediaDataSource.BufferConfig heavyConfig = new BufferedMediaDataSource.BufferConfig();
+        heavyConfig.bufferSize = bufferSize;
+        heavyConfig.maxUsedBuffers = HeavyBlocks + 10;
+        BufferedMediaDataSource.BufferConfig lightConfig = new BufferedMediaDataSource.BufferConfig();
+        lightConfig.bufferSize = bufferSize;
+        lightConfig.maxUsedBuffers = LightBlocks * 2;
+        AtomicLong heavyBytes = new AtomicLong();
+        AtomicLong lightBytes = new AtomicLong();
+        long streamLen = (HeavyBlocks + 10) * bufferSize;
+        DummyStreamSource.ReadGate lightGate = new DummyStreamSource.ReadGate((LightBlocks - 1) * bufferSize);
+        BufferedMediaDataSource heavySource = createCountingDataSource(streamLen, heavyConfig, heavyBytes, Integer.MAX_VALUE);
+        BufferedMediaDataSource lightSource = createCountingDataSource(streamLen, lightConfig, lightBytes, Integer.MAX_VALUE, lightGate);
+        heavySource.prefetch(0, HeavyBlocks * bufferSize, BufferedMediaDataSource.Priority.High);
+        lightSource.prefetch(0, LightBlocks * bufferSize, BufferedMediaDataSource.Priority.High);
+        // Held at the start of the light source's last block, so both sources stop where they are.
+        assertTrue(lightGate.awaitReached(60000));
+        long heavyLoaded = heavyBytes.get() / bufferSize;
+        assertEquals((LightBlocks - 1) * bufferSize, lightBytes.get());
+        lightGate.open();
+        heavySource.close();
+        lightSource.close();
+        // Taking turns the heavy source gets about as many loads in, first come first served it
+        // would have had all of them.
+        assertTrue("Heavy source loaded " + heavyLoaded, heavyLoaded < LightBlocks * 3);
+    }
+
+    @Test
+    public void testSeekAbortsStaleLoads() throws Exception {
+        // A block cached ahead that's still loading when playback seeks far away is abandoned part
+        // way through, rather than holding up the load for the new position.
+        final int bufferSize = 8192;
+        final int SeekBlock = 1000;
+        mTypeName = "DummyAbort";
+        // A second load thread for the seek, while the first is held loading block 1.
+        BufferedMediaDataSource.setLoadConcurrency(mTypeName, 2);
+        BufferedMediaDataSource.BufferConfig bufferConfig = new BufferedMediaDataSource.BufferConfig();
+        bufferConfig.bufferSize = bufferSize;
+        // Only block 1 cached ahead, so the second thread is free for the seek.
+        bufferConfig.cacheAheadCount = 1;
+        // Reads of 256 bytes, so the rest of block 1 takes many reads after the gate opens, each of
+        // which can see the abort.
+        DummyStreamSource.ReadGate blockOneGate = new DummyStreamSource.ReadGate(bufferSize);
+        BufferedMediaDataSource dataSource = createCountingDataSource(2000L * bufferSize, bufferConfig, new AtomicLong(), 256, blockOneGate);
+        byte[] buffer = new byte[100];
+        assertEquals(buffer.length, dataSource.readAt(0, buffer, 0, buffer.length));
+        assertTrue(blockOneGate.awaitReached(10000));
+        assertEquals(buffer.length, dataSource.readAt((long) SeekBlock * bufferSize, buffer, 0, buffer.length));
+        blockOneGate.open();
+        dataSource.close();
+        SparseIntArray loadCounts = dataSource.getReadStats().loadCounts();
+        assertEquals(1, loadCounts.get(0));
+        assertEquals(1, loadCounts.get(SeekBlock));
+        for (int blockIndex = 1; blockIndex <= bufferConfig.cacheAheadCount; blockIndex++) {
+            assertEquals(0, loadCounts.get(blockIndex));
+        }
+    }
+
+    @Test
+    public void testWarmupLoadsBeforeFirstRead() throws Exception {
+        // The head and tail blocks are loaded as soon as the source is created, once each, and the
+        // first reads of them don't load them again.
+        final int BlockCount = 50;
+        final int bufferSize = 8192;
+        mTypeName = "DummyWarmup";
+        BufferedMediaDataSource.BufferConfig bufferConfig = new BufferedMediaDataSource.BufferConfig();
+        bufferConfig.bufferSize = bufferSize;
+        bufferConfig.cacheAheadCount = 0;
+        bufferConfig.warmupHeadBlocks = 2;
+        bufferConfig.warmupTailBlocks = 2;
+        int warmupCount = bufferConfig.warmupHeadBlocks + bufferConfig.warmupTailBlocks;
+        long baseBytes = CacheBudget.usedBytes();
+        BufferedMediaDataSource dataSource = createDataSource(BlockCount * bufferSize, false, bufferConfig);
+        long timeout = System.currentTimeMillis() + 10000;
+        while (CacheBudget.usedBytes() - baseBytes < warmupCount * bufferSize && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertEquals(warmupCount * bufferSize, CacheBudget.usedBytes() - baseBytes);
+        byte[] buffer = new byte[100];
+        int[] warmupBlocks = {0, 1, BlockCount - 2, BlockCount - 1};
+        for (int blockIndex : warmupBlocks) {
+            assertEquals(buffer.length, dataSource.readAt((long) blockIndex * bufferSize, buffer, 0, buffer.length));
+        }
+        dataSource.close();
+        // Any second load would have needed a block of its own.
+        assertEquals(warmupCount, dataSource.getAllocatedBlocks());
+        SparseIntArray loadCounts = dataSource.getReadStats().loadCounts();
+        assertEquals(warmupCount, loadCounts.size());
+        for (int blockIndex : warmupBlocks) {
+            assertEquals(1, loadCounts.get(blockIndex));
+        }
+    }
+
+    @Test
+    public void testIdleLoadThreadsStop() throws Exception {
+        // Once the last source of a type closes its load tasks hand their threads back to the
+        // executor after the type's timeout.
+        final String typeName = "DummyIdle";
+        final AtomicInteger runningTasks = new AtomicInteger();
+        BufferedMediaDataSource.setLoadExecutor(runnable -> new Thread(() -> {
+            runningTasks.incrementAndGet();
+            try {
+                runnable.run();
+            } finally {
+                runningTasks.decrementAndGet();
+            }
+        }).start());
+        BufferedMediaDataSource.setLoadConcurrency(typeName, 2);
+        BufferedMediaDataSource.BufferConfig bufferConfig = new BufferedMediaDataSource.BufferConfig();
+        bufferConfig.loadThreadTimeout = 100;
+        try {
+            mTypeName = typeName;
+            BufferedMediaDataSource dataSource1 = createDataSource(123456, false, bufferConfig);
+            BufferedMediaDataSource dataSource2 = createDataSource(123456, false, bufferConfig);
+            byte[] buffer = new byte[1000];
+            assertEquals(buffer.length, dataSource1.readAt(1000, buffer, 0, buffer.length));
+            assertEquals(buffer.length, dataSource2.readAt(50000, buffer, 0, buffer.length));
+            assertEquals(2, runningTasks.get());
+            dataSource1.close();
+            // Still in use by the other source.
+            Thread.sleep(bufferConfig.loadThreadTimeout * 2);
+            assertEquals(2, runningTasks.get());
+            dataSource2.close();
+            long timeout = System.currentTimeMillis() + 10000;
+            while (runningTasks.get() > 0 && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, runningTasks.get());
+        } finally {
+            BufferedMediaDataSource.setLoadExecutor(null);
+        }
+    }
+
+    @Test
+    public void testSequentialReadReusesBlocks() throws Exception {
+        // Once the cache is full each load reuses the block it purges, rather than allocating.
+        final int BlockCount = 200;
+        BufferedMediaDataSource.BufferConfig bufferConfig = new BufferedMediaDataSource.BufferConfig();
+        bufferConfig.bufferSize = 1024;
+        bufferConfig.maxUsedBuffers = 10;
+        bufferConfig.minReservedBuffers = 2;
+        bufferConfig.cacheAheadCount = 2;
+        BufferedMediaDataSource dataSource = createDataSource(BlockCount * bufferConfig.bufferSize, false, bufferConfig);
+        byte[] buffer = new byte[100];
+        for (long position = 0; position + buffer.length <= BlockCount * bufferConfig.bufferSize; position += buffer.length) {
+            assertEquals(buffer.length, dataSource.readAt(position, buffer, 0, buffer.length));
+        }
+        dataSource.close();
+        int allocatedBlocks = dataSource.getAllocatedBlocks();
+        assertTrue("Allocated " + allocatedBlocks + " blocks", allocatedBlocks <= bufferConfig.maxUsedBuffers + bufferConfig.cacheAheadCount + 2);
+    }
+
+    @Test
+    public void testPinnedBlocksSurvivePurging() throws Exception {
+        // Pinned blocks stay while far more than the cache holds is read, and once unpinned are
+        // purged like any other block.
+        final int BlockCount = 100;
+        final int PinStart = 10;
+        final int PinBlocks = 4;
+        mTypeName = "DummyPin";
+        BufferedMediaDataSource.BufferConfig bufferConfig = new BufferedMediaDataSource.BufferConfig();
+        bufferConfig.bufferSize = 1024;
+        bufferConfig.maxUsedBuffers = 8;
+        bufferConfig.cacheAheadCount = 1;
+        int bufferSize = bufferConfig.bufferSize;
+        BufferedMediaDataSource dataSource = createDataSource(BlockCount * bufferSize, false, bufferConfig);
+        dataSource.pin(PinStart * bufferSize, PinBlocks * bufferSize);
+        byte[] buffer = new byte[100];
+        readBlocks(dataSource, PinStart, PinStart + PinBlocks, buffer);
+        readBlocks(dataSource, PinStart + PinBlocks, BlockCount, buffer);
+        readBlocks(dataSource, PinStart, PinStart + PinBlocks, buffer);
+        SparseIntArray loadCounts = dataSource.getReadStats().loadCounts();
+        for (int blockIndex = PinStart; blockIndex < PinStart + PinBlocks; blockIndex++) {
+            assertEquals(1, loadCounts.get(blockIndex));
+        }
+        dataSource.unpin(PinStart * bufferSize, PinBlocks * bufferSize);
+        readBlocks(dataSource, PinStart + PinBlocks, BlockCount, buffer);
+        readBlocks(dataSource, PinStart, PinStart + PinBlocks, buffer);
+        dataSource.close();
+        loadCounts = dataSource.getReadStats().loadCounts();
+        for (int blockIndex = PinStart; blockIndex < PinStart + PinBlocks; blockIndex++) {
+            assertEquals(2, loadCounts.get(blockIndex));
+        }
+    }
+
+    private static void readBlocks(BufferedMediaDataSource dataSource, int firstBlock, int endBlock, byte[] buffer) throws IOException {
+        int bufferSize = dataSource.getBufferSize();
+        for (int blockIndex = firstBlock; blockIndex < endBlock; blockIndex++) {
+            assertEquals(buffer.length, dataSource.readAt((long) blockIndex * bufferSize, buffer, 0, buffer.length));
+        }
+    }
+
+    @Test
+    public void testGlobalCacheBudget() throws Exception {
+        // Two sources sharing a budget that fits one of them, the one being read takes the memory
+        // from the other, down to its reservation, and gives it back when that's read again.
+        final int BudgetBlocks = 16;
+        final int bufferSize = 8192;
+        mTypeName = "DummyBudget";
+        BufferedMediaDataSource.BufferConfig bufferConfig = new BufferedMediaDataSource.BufferConfig();
+        bufferConfig.bufferSize = bufferSize;
+        bufferConfig.maxUsedBuffers = BudgetBlocks * 2;
+        bufferConfig.minReservedBuffers = 2;
+        bufferConfig.cacheAheadCount = 0;
+        long budgetBytes = CacheBudget.usedBytes() + BudgetBlocks * bufferSize;
+        BufferedMediaDataSource.setGlobalCacheBudget(budgetBytes);
+        try {
+            BufferedMediaDataSource dataSource1 = createDataSource(BudgetBlocks * bufferSize, false, bufferConfig);
+            BufferedMediaDataSource dataSource2 = createDataSource(BudgetBlocks * bufferSize, false, bufferConfig);
+            readEachBlock(dataSource1, BudgetBlocks, budgetBytes);
+            assertEquals(BudgetBlocks, totalLoads(dataSource1));
+            readEachBlock(dataSource2, BudgetBlocks, budgetBytes);
+            assertEquals(BudgetBlocks, totalLoads(dataSource2));
+            // All but its reservation went to the second source, so have to be loaded again.
+            readEachBlock(dataSource1, BudgetBlocks, budgetBytes);
+            int reloads1 = totalLoads(dataSource1) - BudgetBlocks;
+            assertTrue("Reloaded " + reloads1, reloads1 >= BudgetBlocks - bufferConfig.minReservedBuffers);
+            readEachBlock(dataSource2, BudgetBlocks, budgetBytes);
+            int reloads2 = totalLoads(dataSource2) - BudgetBlocks;
+            assertTrue("Reloaded " + reloads2, reloads2 >= BudgetBlocks - bufferConfig.minReservedBuffers);
+            dataSource1.close();
+            dataSource2.close();
+        } finally {
+            BufferedMediaDataSource.setGlobalCacheBudget(0);
+        }
+    }
+
+    @Test
+    public void testTrimMemory() throws Exception {
+        // On memory pressure the cache drops back to the blocks around the read position, then
+        // regrows once the pressure hold is over.
+        final int BlockCount = 32;
+        final int bufferSize = 8192;
+        mTypeName = "DummyTrim";
+        BufferedMediaDataSource.BufferConfig bufferConfig = new BufferedMediaDataSource.BufferConfig();
+        bufferConfig.bufferSize = bufferSize;
+        bufferConfig.maxUsedBuffers = BlockCount;
+        bufferConfig.cacheAheadCount = 2;
+        // The header block, the previous block, the current block and those cached ahead.
+        long workingSetBytes = (bufferConfig.cacheAheadCount + 3) * bufferSize;
+        BufferedMediaDataSource.setMemoryPressureHoldTime(200);
+        try {
+            long baseBytes = CacheBudget.usedBytes();
+            BufferedMediaDataSource dataSource = createDataSource(BlockCount * bufferSize, false, bufferConfig);
+            byte[] buffer = new byte[100];
+            for (int blockIndex = 0; blockIndex < BlockCount / 2; blockIndex++) {
+                assertEquals(buffer.length, dataSource.readAt((long) blockIndex * bufferSize, buffer, 0, buffer.length));
+            }
+            // Going into the background isn't memory pressure.
+            BufferedMediaDataSource.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+            assertTrue(CacheBudget.usedBytes() - baseBytes >= BlockCount / 2 * bufferSize);
+            BufferedMediaDataSource.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+            assertTrue(CacheBudget.underPressure());
+            long trimmedBytes = CacheBudget.usedBytes() - baseBytes;
+            assertTrue("Trimmed to " + trimmedBytes, trimmedBytes <= workingSetBytes);
+            long timeout = System.currentTimeMillis() + 10000;
+            while (CacheBudget.underPressure() && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10);
+            }
+            assertFalse(CacheBudget.underPressure());
+            for (int blockIndex = BlockCount / 2; blockIndex < BlockCount; blockIndex++) {
+                assertEquals(buffer.length, dataSource.readAt((long) blockIndex * bufferSize, buffer, 0, buffer.length));
+            }
+            long regrownBytes = CacheBudget.usedBytes() - baseBytes;
+            assertTrue("Regrew to " + regrownBytes, regrownBytes >= BlockCount / 2 * bufferSize);
+            dataSource.close();
+        } finally {
+            BufferedMediaDataSource.setMemoryPressureHoldTime(CacheBudget.DefaultPressureHoldTime);
+        }
+    }
+
+    // Reads every block in turn, checking the caches stay within budgetBytes. The load thread
+    // enforces the budget just after handing the block over, so allow for that one block.
+    private void readEachBlock(BufferedMediaDataSource dataSource, int blockCount, long budgetBytes) throws IOException {
+        int bufferSize = dataSource.getBufferSize();
+        byte[] buffer = new byte[100];
+        for (int blockIndex = 0; blockIndex < blockCount; blockIndex++) {
+            assertEquals(buffer.length, dataSource.readAt((long) blockIndex * bufferSize, buffer, 0, buffer.length));
+            long usedBytes = CacheBudget.usedBytes();
+            assertTrue("Using " + usedBytes + " of " + budgetBytes, usedBytes <= budgetBytes + bufferSize);
+        }
+    }
+
+    private static int totalLoads(BufferedMediaDataSource dataSource) {
+        SparseIntArray loadCounts = dataSource.getReadStats().loadCounts();
+        int loads = 0;
+        for (int index = 0; index < loadCounts.size(); index++) {
+            loads += loadCounts.valueAt(index);
+        }
+        return loads;
+    }
+
+    private void readBlocksRepeatedly(BufferedMediaDataSource dataSource, int blocks, byte[] buffer, int reads) throws IOException {
+        int bufferSize = dataSource.getBufferSize();
+        DummyStreamSource expectedValues = new DummyStreamSource(blocks * bufferSize);
+        byte[] expected = new byte[blocks * bufferSize];
+        assertEquals(expected.length, expectedValues.read(expected, 0, expected.length));
+        int position = 0;
+        for (int read = 0; read < reads; read++) {
+            assertEquals(buffer.length, dataSource.readAt(position, buffer, 0, buffer.length));
+            if (read % 1000 == 0) {
+                assertTrue(Arrays.equals(Arrays.copyOfRange(expected, position, position + buffer.length), buffer));
+            }
+            position += buffer.length;
+            if (position + buffer.length > expected.length) {
+                position = 0;
+            }
+        }
+    }
+
     private void doTest(long streamLen, boolean useDataInput) throws IOException {
         for(int bufLen = Math.max(1, (int)(streamLen / 100)); bufLen <= streamLen; bufLen = bufLen * 2 + 1) {
             doTestSingleThread(TestMode.Sequential, streamLen, bufLen, useDataInput);
@@ -121,6 +798,12 @@ public class BufferedMediaDataSourceTest {
     }
 
     private BufferedMediaDataSource createDataSource(final long streamLen, boolean useDataInput) throws IOException {
+        BufferedMediaDataSource.BufferConfig bufferConfig = new BufferedMediaDataSource.BufferConfig();
+        bufferConfig.offHeapBuffers = mOffHeapBuffers;
+        return createDataSource(streamLen, useDataInput, bufferConfig);
+    }
+
+    private BufferedMediaDataSource createDataSource(final long streamLen, boolean useDataInput, BufferedMediaDataSource.BufferConfig bufferConfig) throws IOException {
         BufferedMediaDataSource bmds;
         if (useDataInput) {
             bmds = new BufferedMediaDataSource(new BufferedMediaDataSource.DataInputCreator() {
@@ -147,9 +830,9 @@ public class BufferedMediaDataSourceTest {
 
                 @Override
                 public String typeName() {
-                    return "Dummy";
+                    return mTypeName;
                 }
-            });
+            }, bufferConfig);
         } else {
             bmds = new BufferedMediaDataSource(new BufferedMediaDataSource.StreamCreator() {
                 @Override
@@ -166,13 +849,60 @@ public class BufferedMediaDataSourceTest {
 
                 @Override
                 public String typeName() {
-                    return "Dummy";
+                    return mTypeName;
                 }
-            });
+            }, bufferConfig);
         }
         return bmds;
     }
 
+    // A stream source that adds what it reads to bytesRead, and returns at most maxReadSize from each
+    // read. Every stream it opens shares the readGates.
+    private BufferedMediaDataSource createCountingDataSource(final long streamLen, BufferedMediaDataSource.BufferConfig bufferConfig,
+                                                             final AtomicLong bytesRead, final int maxReadSize,
+                                                             final DummyStreamSource.ReadGate... readGates) throws IOException {
+        return new BufferedMediaDataSource(new BufferedMediaDataSource.StreamCreator() {
+            @Override
+            public InputStream openStream() throws IOException {
+                DummyStreamSource dummyStreamSource = new DummyStreamSource(streamLen) {
+                    private long mPosition;
+
+                    @Override
+                    public int read(@NonNull byte[] buffer, int off, int len) throws IOException {
+                        int read = super.read(buffer, off, Math.min(len, maxReadSize));
+                        if (read > 0) {
+                            mPosition += read;
+                            bytesRead.addAndGet(read);
+                        }
+                        return read;
+                    }
+
+                    // Skips straight there, rather than reading up to it a chunk at a time.
+                    @Override
+                    public long skip(long count) throws IOException {
+                        long skipped = Math.max(0, Math.min(count, streamLen - mPosition));
+                        mPosition += skipped;
+                        seek(mPosition);
+                        return skipped;
+                    }
+                };
+                setEmulatedDelays(dummyStreamSource);
+                dummyStreamSource.setReadGates(readGates);
+                return dummyStreamSource;
+            }
+
+            @Override
+            public long length() throws IOException {
+                return streamLen;
+            }
+
+            @Override
+            public String typeName() {
+                return mTypeName;
+            }
+        }, bufferConfig);
+    }
+
     private void setEmulatedDelays(DummyStreamSource dummyStreamSource) {
         dummyStreamSource.setEmulatedCallDelay(mPerCallDelay);
         dummyStreamSource.setEmulatedLoadDelay(mLoadDelay);
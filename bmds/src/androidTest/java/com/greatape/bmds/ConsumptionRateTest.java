@@ -0,0 +1,62 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Steve Townsend
+ */
+public class ConsumptionRateTest {
+    private static final long Millis = 1000000L;
+
+    @Test
+    public void testSteadyRate() {
+        ConsumptionRate consumptionRate = new ConsumptionRate(64 * 1024);
+        assertEquals(0, consumptionRate.bytesPerSecond());
+        // 1MB per second, read in 10KB chunks every 10ms.
+        long position = 0;
+        for (long time = 0; time < 5000 * Millis; time += 10 * Millis) {
+            consumptionRate.bytesRead(position, 10000, time);
+            position += 10000;
+        }
+        assertWithin(1000000, consumptionRate.bytesPerSecond());
+    }
+
+    @Test
+    public void testSeeksAndPauses() {
+        ConsumptionRate consumptionRate = new ConsumptionRate(64 * 1024);
+        long position = 0;
+        long time = 0;
+        for (int seek = 0; seek < 10; seek++) {
+            for (int read = 0; read < 100; read++) {
+                consumptionRate.bytesRead(position, 10000, time);
+                position += 10000;
+                time += 10 * Millis;
+            }
+            // Jump forward a long way, then pause for a long time, neither should count.
+            position += 50 * 1000 * 1000;
+            time += 10000 * Millis;
+        }
+        assertWithin(1000000, consumptionRate.bytesPerSecond());
+    }
+
+    private void assertWithin(long expected, long actual) {
+        assertTrue("Rate " + actual, Math.abs(expected - actual) < expected / 20);
+    }
+}
@@ -0,0 +1,264 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+import android.util.Log;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the hit rates of each eviction policy over access traces modelled on what MediaPlayer
+ * does during playback.
+ *
+ * @author Steve Townsend
+ */
+public class EvictionPolicyTest {
+    private static final String TAG = "EvictionPolicyTest";
+    private static final int Capacity = 64;
+
+    @Test
+    public void testCapacityAndFilter() {
+        for (BufferedMediaDataSource.EvictionPolicyType type : BufferedMediaDataSource.EvictionPolicyType.values()) {
+            Simulation simulation = new Simulation(type, Capacity);
+            // Never purge the first few blocks, so the policies have to look past them.
+            simulation.run(randomTrace(5000, 1000, 1), blockIndex -> blockIndex >= 8);
+            assertTrue(type + " over capacity", simulation.mBlockTable.size() <= Capacity);
+        }
+    }
+
+    @Test
+    public void testHitRateBenchmark() {
+        int[][] traces = {playbackTrace(), scanWithHotSetTrace(), randomTrace(50000, 1000, 2)};
+        String[] traceNames = {"Playback", "ScanWithHotSet", "Random"};
+        // Where reuse frequency counts for something ARC and W-TinyLFU should do better. Straight
+        // playback is mostly a scan, so there's nothing for them to gain.
+        boolean[] frequencyMatters = {false, true, true};
+        BufferedMediaDataSource.EvictionPolicyType[] types = BufferedMediaDataSource.EvictionPolicyType.values();
+        for (int traceIndex = 0; traceIndex < traces.length; traceIndex++) {
+            StringBuilder stringBuilder = new StringBuilder(traceNames[traceIndex]);
+            double[] hitRates = new double[types.length];
+            for (BufferedMediaDataSource.EvictionPolicyType type : types) {
+                Simulation simulation = new Simulation(type, Capacity);
+                long startTime = System.nanoTime();
+                simulation.run(traces[traceIndex], null);
+                long duration = System.nanoTime() - startTime;
+                assertEquals(traces[traceIndex].length, simulation.mHits + simulation.mMisses);
+                hitRates[type.ordinal()] = simulation.hitRate();
+                stringBuilder.append(String.format(" %s: %.1f%% (%dms)", type, simulation.hitRate() * 100, duration / 1000000));
+            }
+            Log.d(TAG, stringBuilder.toString());
+            if (frequencyMatters[traceIndex]) {
+                assertBetter(traceNames[traceIndex], hitRates, BufferedMediaDataSource.EvictionPolicyType.Arc);
+                assertBetter(traceNames[traceIndex], hitRates, BufferedMediaDataSource.EvictionPolicyType.WTinyLfu);
+            }
+        }
+    }
+
+    private static void assertBetter(String traceName, double[] hitRates, BufferedMediaDataSource.EvictionPolicyType type) {
+        double hitRate = hitRates[type.ordinal()];
+        assertTrue(traceName + " " + type + " vs Lru", hitRate > hitRates[BufferedMediaDataSource.EvictionPolicyType.Lru.ordinal()]);
+        assertTrue(traceName + " " + type + " vs Legacy", hitRate > hitRates[BufferedMediaDataSource.EvictionPolicyType.Legacy.ordinal()]);
+    }
+
+    @Test
+    public void testPlayheadAwareEviction() {
+        final int ReadAhead = 8;
+        final int BackWindow = 4;
+        int[] trace = playbackTrace();
+        for (BufferedMediaDataSource.EvictionPolicyType type : BufferedMediaDataSource.EvictionPolicyType.values()) {
+            Simulation baseSimulation = new Simulation(type, 16);
+            baseSimulation.run(trace, null, ReadAhead);
+            Simulation playheadSimulation = new Simulation(type, 16, BackWindow, ReadAhead);
+            playheadSimulation.run(trace, null, ReadAhead);
+            Log.d(TAG, String.format("Playhead %s: %.1f%% -> %.1f%%", type, baseSimulation.hitRate() * 100,
+                    playheadSimulation.hitRate() * 100));
+            assertTrue(type + " playhead hit rate", playheadSimulation.hitRate() >= baseSimulation.hitRate());
+        }
+    }
+
+    @Test
+    public void testPlayheadAheadWindowFollowsCacheAhead() {
+        // The blocks protected ahead of the playhead follow the current cache ahead, e.g. as the
+        // adaptive window grows.
+        final int[] aheadSize = {2};
+        EvictionPolicy evictionPolicy = new PlayheadEvictionPolicy(
+                EvictionPolicy.create(BufferedMediaDataSource.EvictionPolicyType.Lru, Capacity, new ReadStats()), 0, () -> aheadSize[0]);
+        BlockTable blockTable = new BlockTable(Capacity);
+        for (int blockIndex = 10; blockIndex <= 20; blockIndex++) {
+            CacheBlock cacheBlock = new HeapCacheBlock(1);
+            cacheBlock.blockIndex = blockIndex;
+            blockTable.put(cacheBlock);
+            evictionPolicy.blockLoaded(blockIndex);
+        }
+        evictionPolicy.blockUsed(10);
+        EvictionPolicy.BlockFilter filter = blockIndex -> blockIndex != 10;
+        int toPurge = evictionPolicy.selectBlockToPurge(blockTable, filter);
+        assertTrue("Purged " + toPurge, toPurge > 12);
+        aheadSize[0] = 8;
+        toPurge = evictionPolicy.selectBlockToPurge(blockTable, filter);
+        assertTrue("Purged " + toPurge, toPurge > 18);
+        // A played block behind the playhead goes first.
+        evictionPolicy.blockUsed(15);
+        assertEquals(10, evictionPolicy.selectBlockToPurge(blockTable, blockIndex -> true));
+    }
+
+    // Sequential playback that keeps going back to the header and index at both ends of the file,
+    // with occasional short seeks back.
+    private int[] playbackTrace() {
+        final int FileBlocks = 4000;
+        Random random = new Random(0);
+        IntArrayBuilder trace = new IntArrayBuilder();
+        for (int blockIndex = 2; blockIndex < FileBlocks - 2; blockIndex++) {
+            trace.add(blockIndex);
+            if (blockIndex % 40 == 0) {
+                trace.add(0);
+                trace.add(1);
+                trace.add(FileBlocks - 1);
+            }
+            if (random.nextInt(200) == 0) {
+                int seekBack = blockIndex - 1 - random.nextInt(30);
+                for (int reread = Math.max(2, seekBack); reread < blockIndex; reread++) {
+                    trace.add(reread);
+                }
+            }
+        }
+        return trace.toArray();
+    }
+
+    // Long one off scans interleaved with reads from a small popular set.
+    private int[] scanWithHotSetTrace() {
+        Random random = new Random(1);
+        IntArrayBuilder trace = new IntArrayBuilder();
+        int scanBlock = 1000;
+        for (int iteration = 0; iteration < 30000; iteration++) {
+            if (random.nextInt(3) == 0) {
+                trace.add(random.nextInt(32));
+            } else {
+                trace.add(scanBlock++);
+            }
+        }
+        return trace.toArray();
+    }
+
+    // Skewed random access, roughly Zipfian.
+    private int[] randomTrace(int length, int range, long seed) {
+        Random random = new Random(seed);
+        int[] trace = new int[length];
+        for (int index = 0; index < length; index++) {
+            double value = Math.pow(random.nextDouble(), 3);
+            trace[index] = (int) (value * range);
+        }
+        return trace;
+    }
+
+    private static class Simulation {
+        final BlockTable mBlockTable;
+        final ReadStats mReadStats;
+        final EvictionPolicy mEvictionPolicy;
+        final int mCapacity;
+        int mHits;
+        int mMisses;
+
+        Simulation(BufferedMediaDataSource.EvictionPolicyType type, int capacity) {
+            mCapacity = capacity;
+            mBlockTable = new BlockTable(capacity);
+            mReadStats = new ReadStats();
+            mEvictionPolicy = EvictionPolicy.create(type, capacity, mReadStats);
+        }
+
+        Simulation(BufferedMediaDataSource.EvictionPolicyType type, int capacity, int backWindow, int aheadWindow) {
+            mCapacity = capacity;
+            mBlockTable = new BlockTable(capacity);
+            mReadStats = new ReadStats();
+            mEvictionPolicy = new PlayheadEvictionPolicy(EvictionPolicy.create(type, capacity, mReadStats),
+                    backWindow, aheadWindow);
+        }
+
+        void run(int[] trace, EvictionPolicy.BlockFilter extraFilter) {
+            run(trace, extraFilter, 0);
+        }
+
+        // With readAhead set the blocks after each read are loaded without being used, the way
+        // MediaCache caches ahead.
+        void run(int[] trace, EvictionPolicy.BlockFilter extraFilter, int readAhead) {
+            int lastBlock = -1;
+            for (int blockIndex : trace) {
+                final int currentBlock = blockIndex;
+                mReadStats.blockUsed(blockIndex);
+                if (mBlockTable.contains(blockIndex)) {
+                    mHits++;
+                    if (blockIndex != lastBlock) {
+                        mEvictionPolicy.blockUsed(blockIndex);
+                    }
+                } else {
+                    mMisses++;
+                    load(blockIndex, currentBlock, extraFilter);
+                    mEvictionPolicy.blockUsed(blockIndex);
+                }
+                for (int ahead = 1; ahead <= readAhead; ahead++) {
+                    if (!mBlockTable.contains(blockIndex + ahead)) {
+                        load(blockIndex + ahead, currentBlock, extraFilter);
+                    }
+                }
+                lastBlock = blockIndex;
+            }
+        }
+
+        private void load(int blockIndex, int currentBlock, EvictionPolicy.BlockFilter extraFilter) {
+            CacheBlock cacheBlock = new HeapCacheBlock(1);
+            cacheBlock.blockIndex = blockIndex;
+            mBlockTable.put(cacheBlock);
+            mReadStats.blockLoaded(blockIndex);
+            mEvictionPolicy.blockLoaded(blockIndex);
+            EvictionPolicy.BlockFilter filter = purgeIndex -> purgeIndex != currentBlock &&
+                    purgeIndex != blockIndex && (extraFilter == null || extraFilter.canPurge(purgeIndex));
+            while (mBlockTable.size() > mCapacity) {
+                int toPurge = mEvictionPolicy.selectBlockToPurge(mBlockTable, filter);
+                if (toPurge < 0) {
+                    break;
+                }
+                assertTrue(filter.canPurge(toPurge));
+                mBlockTable.remove(toPurge);
+                mEvictionPolicy.blockRemoved(toPurge);
+            }
+        }
+
+        double hitRate() {
+            return (double) mHits / (mHits + mMisses);
+        }
+    }
+
+    private static class IntArrayBuilder {
+        private int[] mValues = new int[1024];
+        private int mSize;
+
+        void add(int value) {
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+            mValues[mSize++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(mValues, mSize);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Steve Townsend
+ */
+public class MkvIndexTest {
+    private static final int SegmentData = 21;
+    private static final int FirstCluster = SegmentData + 100;
+    private static final int ClusterSize = 20000;
+    private static final int ClusterCount = 5;
+    private static final int CuesPosition = FirstCluster + ClusterCount * ClusterSize;
+
+    @Test
+    public void testCues() throws IOException {
+        byte[] file = buildFile();
+        ContainerIndex containerIndex = ContainerIndex.parse(sourceFor(file), file.length);
+        assertTrue(containerIndex instanceof MkvIndex);
+        MkvIndex mkvIndex = (MkvIndex) containerIndex;
+        // Cue points for clusters 0, 2 and 3, with a second cue in cluster 3.
+        assertEquals(3, mkvIndex.cuePointCount());
+        assertEquals(CuesPosition, mkvIndex.pinPosition());
+        assertEquals(file.length - CuesPosition, mkvIndex.pinLength());
+        int[] blocks = new int[8];
+        // A seek into cluster 2 batches up the blocks from there on.
+        long seekPosition = FirstCluster + 2 * ClusterSize + 10;
+        assertEquals(8, mkvIndex.upcomingBlocks(seekPosition, 1024, blocks));
+        for (int index = 0; index < blocks.length; index++) {
+            assertEquals(seekPosition / 1024 + index, blocks[index]);
+        }
+        // Up to the start of the Cues with plenty of room.
+        blocks = new int[1000];
+        assertEquals((CuesPosition - 1) / 1024 - seekPosition / 1024 + 1, mkvIndex.upcomingBlocks(seekPosition, 1024, blocks));
+        // After a seek the batch is limited by the largest cache ahead, not the current count.
+        assertEquals(4, mkvIndex.upcomingLimit(4, 100, false));
+        assertEquals(4, mkvIndex.upcomingLimit(8, 4, false));
+        assertEquals(100, mkvIndex.upcomingLimit(4, 100, true));
+        blocks = new int[mkvIndex.upcomingLimit(4, 100, true)];
+        assertEquals((CuesPosition - 1) / 1024 - seekPosition / 1024 + 1, mkvIndex.upcomingBlocks(seekPosition, 1024, blocks));
+        // Headers and the Cues themselves fall back to sequential.
+        assertEquals(-1, mkvIndex.upcomingBlocks(50, 1024, blocks));
+        assertEquals(-1, mkvIndex.upcomingBlocks(CuesPosition + 5, 1024, blocks));
+    }
+
+    @Test
+    public void testNotMkv() throws IOException {
+        byte[] file = new byte[100000];
+        for (int index = 0; index < file.length; index++) {
+            file[index] = (byte) (index * 7);
+        }
+        assertNull(MkvIndex.parse(sourceFor(file), file.length));
+    }
+
+    private ContainerIndex.Source sourceFor(final byte[] file) {
+        return (position, buffer, offset, size) -> {
+            if (position >= file.length) {
+                return -1;
+            }
+            int len = (int) Math.min(size, file.length - position);
+            System.arraycopy(file, (int) position, buffer, offset, len);
+            return len;
+        };
+    }
+
+    private byte[] buildFile() throws IOException {
+        ByteArrayOutputStream fileStream = new ByteArrayOutputStream();
+        DataOutputStream file = new DataOutputStream(fileStream);
+        // EBML header with a dummy body, then a Segment of unknown size.
+        file.writeInt(0x1A45DFA3);
+        file.write(new byte[]{(byte) 0x84, 0, 0, 0, 0});
+        file.writeInt(0x18538067);
+        file.write(new byte[]{0x01, -1, -1, -1, -1, -1, -1, -1});
+        assertEquals(SegmentData, file.size());
+        byte[] seek = concat(element(0x53AB, new byte[]{0x1C, 0x53, (byte) 0xBB, 0x6B}),
+                element(0x53AC, unsigned(CuesPosition - SegmentData)));
+        file.write(element(0x114D9B74, element(0x4DBB, seek)));
+        // Void padding up to the first cluster.
+        file.write(element(0xEC, new byte[FirstCluster - file.size() - 9]));
+        assertEquals(FirstCluster, file.size());
+        for (int cluster = 0; cluster < ClusterCount; cluster++) {
+            file.write(element(0x1F43B675, new byte[ClusterSize - 12]));
+        }
+        assertEquals(CuesPosition, file.size());
+        file.write(element(0x1C53BB6B, concat(cuePoint(0, 0), cuePoint(2000, 2), cuePoint(3000, 3), cuePoint(3500, 3))));
+        return fileStream.toByteArray();
+    }
+
+    private byte[] cuePoint(long time, int cluster) throws IOException {
+        byte[] trackPositions = concat(element(0xF7, unsigned(1)),
+                element(0xF1, unsigned(FirstCluster + cluster * ClusterSize - SegmentData)));
+        return element(0xBB, concat(element(0xB3, unsigned(time)), element(0xB7, trackPositions)));
+    }
+
+    private byte[] unsigned(long value) {
+        byte[] bytes = new byte[8];
+        for (int index = 7; index >= 0; index--) {
+            bytes[index] = (byte) value;
+            value >>= 8;
+        }
+        return bytes;
+    }
+
+    // The ID written in as few bytes as it needs, the size always as 8 bytes.
+    private byte[] element(int id, byte[] body) throws IOException {
+        ByteArrayOutputStream elementStream = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(elementStream);
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            if ((id >>> shift) != 0) {
+                out.write(id >>> shift);
+            }
+        }
+        out.write(0x01);
+        for (int shift = 48; shift >= 0; shift -= 8) {
+            out.write((int) ((long) body.length >>> shift));
+        }
+        out.write(body);
+        return elementStream.toByteArray();
+    }
+
+    private byte[] concat(byte[]... parts) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            outputStream.write(part);
+        }
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,150 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author Steve Townsend
+ */
+public class Mp4IndexTest {
+    private static final int MoovPosition = 70000;
+
+    @Test
+    public void testInterleavedTracks() throws IOException {
+        final byte[] file = buildFile();
+        Mp4Index mp4Index = Mp4Index.parse(sourceFor(file), file.length);
+        assertNotNull(mp4Index);
+        assertEquals(6, mp4Index.chunkCount());
+        int[] blocks = new int[8];
+        // Video chunk 0, then audio chunk 0 at the same time, then video chunk 1.
+        assertEquals(8, mp4Index.upcomingBlocks(1000, 1024, blocks));
+        assertArrayEquals(new int[]{0, 1, 2, 3, 48, 49, 9, 10}, blocks);
+        // Part way through the last audio chunk, followed only by the last video chunk.
+        assertEquals(5, mp4Index.upcomingBlocks(60500, 1024, blocks));
+        assertArrayEquals(new int[]{59, 29, 30, 31, 32}, Arrays.copyOf(blocks, 5));
+        // Between chunks, the caller falls back to sequential cache ahead.
+        assertEquals(-1, mp4Index.upcomingBlocks(5000, 1024, blocks));
+        assertEquals(-1, mp4Index.upcomingBlocks(10, 1024, blocks));
+    }
+
+    @Test
+    public void testNotMp4() throws IOException {
+        byte[] file = new byte[100000];
+        for (int index = 0; index < file.length; index++) {
+            file[index] = (byte) index;
+        }
+        assertNull(Mp4Index.parse(sourceFor(file), file.length));
+    }
+
+    private ContainerIndex.Source sourceFor(final byte[] file) {
+        return (position, buffer, offset, size) -> {
+            if (position >= file.length) {
+                return -1;
+            }
+            int len = (int) Math.min(size, file.length - position);
+            System.arraycopy(file, (int) position, buffer, offset, len);
+            return len;
+        };
+    }
+
+    // Video with one 3000 byte sample per chunk every second, and audio with two 500 byte samples
+    // per chunk every two seconds, placed far apart in the mdat. The moov is at the end.
+    private byte[] buildFile() throws IOException {
+        ByteArrayOutputStream fileStream = new ByteArrayOutputStream();
+        DataOutputStream file = new DataOutputStream(fileStream);
+        file.writeInt(16);
+        file.writeBytes("ftypisom");
+        file.writeInt(0);
+        file.writeInt(MoovPosition - 16);
+        file.writeBytes("mdat");
+        file.write(new byte[MoovPosition - 24]);
+        byte[] video = track(1000, new long[]{1000, 10000, 20000, 30000}, 1, 3000, 4, 1000);
+        byte[] audio = track(100, new long[]{50000, 60000}, 2, 500, 4, 100);
+        file.write(box("moov", concat(video, audio)));
+        return fileStream.toByteArray();
+    }
+
+    private byte[] track(int timescale, long[] chunkOffsets, int samplesPerChunk, int sampleSize, int sampleCount,
+                         int sampleDelta) throws IOException {
+        ByteArrayOutputStream mdhd = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(mdhd);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(timescale);
+        out.writeInt(0);
+        out.writeInt(0);
+        ByteArrayOutputStream stco = new ByteArrayOutputStream();
+        out = new DataOutputStream(stco);
+        out.writeInt(0);
+        out.writeInt(chunkOffsets.length);
+        for (long chunkOffset : chunkOffsets) {
+            out.writeInt((int) chunkOffset);
+        }
+        ByteArrayOutputStream stsc = new ByteArrayOutputStream();
+        out = new DataOutputStream(stsc);
+        out.writeInt(0);
+        out.writeInt(1);
+        out.writeInt(1);
+        out.writeInt(samplesPerChunk);
+        out.writeInt(1);
+        ByteArrayOutputStream stsz = new ByteArrayOutputStream();
+        out = new DataOutputStream(stsz);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(sampleCount);
+        for (int sample = 0; sample < sampleCount; sample++) {
+            out.writeInt(sampleSize);
+        }
+        ByteArrayOutputStream stts = new ByteArrayOutputStream();
+        out = new DataOutputStream(stts);
+        out.writeInt(0);
+        out.writeInt(1);
+        out.writeInt(sampleCount);
+        out.writeInt(sampleDelta);
+        byte[] stbl = box("stbl", concat(box("stts", stts.toByteArray()), box("stsc", stsc.toByteArray()),
+                box("stsz", stsz.toByteArray()), box("stco", stco.toByteArray())));
+        byte[] mdia = box("mdia", concat(box("mdhd", mdhd.toByteArray()), box("minf", stbl)));
+        return box("trak", mdia);
+    }
+
+    private byte[] box(String type, byte[] body) throws IOException {
+        ByteArrayOutputStream boxStream = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(boxStream);
+        out.writeInt(body.length + 8);
+        out.writeBytes(type);
+        out.write(body);
+        return boxStream.toByteArray();
+    }
+
+    private byte[] concat(byte[]... parts) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            outputStream.write(part);
+        }
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,66 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Steve Townsend
+ */
+public class PersistentCacheTest {
+    private static final int BufferSize = 1024;
+
+    @Test
+    public void testSourceLengthChangeReleasesSize() {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "PersistentCacheTest" + System.nanoTime());
+        try {
+            PersistentCache persistentCache = PersistentCache.get(directory, 100 * BufferSize);
+            PersistentCacheEntry entry = persistentCache.open("PersistentCacheTest", BufferSize);
+            long sourceLength = 50 * BufferSize;
+            for (int blockIndex = 0; blockIndex < 10; blockIndex++) {
+                entry.write(block(blockIndex), sourceLength);
+            }
+            assertEquals(10 * BufferSize, entry.cachedSize());
+            assertEquals(10 * BufferSize, persistentCache.totalSize());
+            // The source changing under the same key drops the old blocks and their size with them.
+            entry.write(block(20), sourceLength + 1);
+            assertFalse(entry.contains(0));
+            assertTrue(entry.contains(20));
+            assertEquals(BufferSize, entry.cachedSize());
+            assertEquals(BufferSize, persistentCache.totalSize());
+            entry.close();
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    private static CacheBlock block(int blockIndex) {
+        CacheBlock cacheBlock = new HeapCacheBlock(BufferSize);
+        cacheBlock.blockIndex = blockIndex;
+        return cacheBlock;
+    }
+}
@@ -0,0 +1,58 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Steve Townsend
+ */
+public class ReadAheadWindowTest {
+
+    @Test
+    public void testGrowAndShrink() {
+        ReadAheadWindow readAheadWindow = new ReadAheadWindow(8, 2, 16);
+        for (int blockIndex = 0; blockIndex < 20; blockIndex++) {
+            readAheadWindow.blockRead(blockIndex);
+            readAheadWindow.cachedAheadBlockUsed();
+        }
+        assertEquals(16, readAheadWindow.size());
+        // Seek away and back, each halves the window.
+        readAheadWindow.blockRead(500);
+        assertEquals(8, readAheadWindow.size());
+        readAheadWindow.blockRead(100);
+        assertEquals(4, readAheadWindow.size());
+        // Nearby reads are not seeks.
+        readAheadWindow.blockRead(99);
+        readAheadWindow.blockRead(104);
+        assertEquals(4, readAheadWindow.size());
+        for (int wasted = 0; wasted < 10; wasted++) {
+            readAheadWindow.cachedAheadBlockWasted();
+        }
+        assertEquals(2, readAheadWindow.size());
+    }
+
+    @Test
+    public void testFixedWindow() {
+        ReadAheadWindow readAheadWindow = new ReadAheadWindow(8, 8, 8);
+        readAheadWindow.cachedAheadBlockUsed();
+        readAheadWindow.blockRead(1000);
+        readAheadWindow.blockRead(0);
+        readAheadWindow.cachedAheadBlockWasted();
+        assertEquals(8, readAheadWindow.size());
+    }
+}
@@ -0,0 +1,135 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Steve Townsend
+ */
+public class SpillFileTest {
+    private static final int BufferSize = 1024;
+
+    @Test
+    public void testRoundTrip() {
+        File directory = createDirectory();
+        SpillFile spillFile = new SpillFile(directory, BufferSize, 4);
+        try {
+            spillFile.write(block(0, BufferSize));
+            // A short last block keeps its length.
+            spillFile.write(block(7, BufferSize / 3));
+            assertTrue(spillFile.contains(0));
+            assertTrue(spillFile.contains(7));
+            assertFalse(spillFile.contains(1));
+            assertBlockRead(spillFile, 0, BufferSize);
+            assertBlockRead(spillFile, 7, BufferSize / 3);
+            assertFalse(spillFile.read(1, new HeapCacheBlock(BufferSize)));
+        } finally {
+            spillFile.close();
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void testSlotsReusedOldestFirst() {
+        File directory = createDirectory();
+        SpillFile spillFile = new SpillFile(directory, BufferSize, 2);
+        try {
+            spillFile.write(block(0, BufferSize));
+            spillFile.write(block(1, BufferSize));
+            // Block 0 was in the oldest slot, so is the one overwritten.
+            spillFile.write(block(2, BufferSize));
+            assertFalse(spillFile.contains(0));
+            assertFalse(spillFile.read(0, new HeapCacheBlock(BufferSize)));
+            assertBlockRead(spillFile, 1, BufferSize);
+            assertBlockRead(spillFile, 2, BufferSize);
+            spillFile.write(block(3, BufferSize));
+            assertFalse(spillFile.read(1, new HeapCacheBlock(BufferSize)));
+            assertBlockRead(spillFile, 2, BufferSize);
+            assertBlockRead(spillFile, 3, BufferSize);
+        } finally {
+            spillFile.close();
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void testCloseDeletesFile() {
+        File directory = createDirectory();
+        SpillFile spillFile = new SpillFile(directory, BufferSize, 2);
+        try {
+            spillFile.write(block(0, BufferSize));
+            assertEquals(1, directory.listFiles().length);
+            spillFile.close();
+            assertEquals(0, directory.listFiles().length);
+            // Writes after closing are dropped rather than starting a new file.
+            spillFile.write(block(1, BufferSize));
+            assertFalse(spillFile.contains(1));
+            assertEquals(0, directory.listFiles().length);
+        } finally {
+            spillFile.close();
+            deleteDirectory(directory);
+        }
+    }
+
+    private static void assertBlockRead(SpillFile spillFile, int blockIndex, int length) {
+        CacheBlock cacheBlock = new HeapCacheBlock(BufferSize);
+        assertTrue(spillFile.read(blockIndex, cacheBlock));
+        assertEquals(blockIndex, cacheBlock.blockIndex);
+        assertEquals(length, cacheBlock.length);
+        byte[] data = new byte[length];
+        cacheBlock.copyTo(0, data, 0, length);
+        assertArrayEquals(blockData(blockIndex, length), data);
+    }
+
+    private static CacheBlock block(int blockIndex, int length) {
+        CacheBlock cacheBlock = new HeapCacheBlock(BufferSize);
+        cacheBlock.loadFrom(ByteBuffer.wrap(blockData(blockIndex, length)), length);
+        cacheBlock.blockIndex = blockIndex;
+        return cacheBlock;
+    }
+
+    private static byte[] blockData(int blockIndex, int length) {
+        byte[] data = new byte[length];
+        for (int index = 0; index < length; index++) {
+            data[index] = (byte) (blockIndex * 31 + index);
+        }
+        return data;
+    }
+
+    private static File createDirectory() {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "SpillFileTest" + System.nanoTime());
+        assertTrue(directory.mkdirs());
+        return directory;
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -22,6 +22,9 @@ import com.greatape.bmds.utils.Utils;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * @author Steve Townsend
@@ -37,6 +40,7 @@ public class DummyStreamSource extends InputStream {
     private Delay mPerMegabyte;
     private Delay mPerCall;
     private Delay mSkipPerMegabyte;
+    private ReadGate[] mReadGates;
 
     private static long mTotalLoadBytes;
     private static long mTotalLoadDelay;
@@ -61,6 +65,10 @@ public class DummyStreamSource extends InputStream {
         mSkipPerMegabyte = perSkipDelay;
     }
 
+    public void setReadGates(ReadGate... readGates) {
+        mReadGates = readGates;
+    }
+
     @Override
     public int read() throws IOException {
         emulateLoadTime(1, 0);
@@ -71,7 +79,17 @@ public class DummyStreamSource extends InputStream {
     }
 
     public int read(@NonNull byte buffer[], int off, int len) throws IOException {
+        if (mIndex >= mLength && len > 0) {
+            return -1;
+        }
         int actualLen = Math.min(len, (int) (mLength - mIndex));
+        if (mReadGates != null) {
+            for (ReadGate readGate : mReadGates) {
+                if (readGate.pass(mIndex)) {
+                    break;
+                }
+            }
+        }
         emulateLoadTime(actualLen, 0);
         long end = mIndex + actualLen;
         for(; mIndex < end; mIndex++) {
@@ -134,6 +152,48 @@ public class DummyStreamSource extends InputStream {
         }
     }
 
+    // Holds the first read that starts at or past position until it's opened, so a test can act
+    // knowing a load has got that far, and no further.
+    public static class ReadGate {
+        private final long mPosition;
+        private final AtomicBoolean mClaimed = new AtomicBoolean();
+        private final CountDownLatch mReached = new CountDownLatch(1);
+        private final CountDownLatch mOpened = new CountDownLatch(1);
+        private volatile long mReachedIndex = -1;
+
+        public ReadGate(long position) {
+            mPosition = position;
+        }
+
+        public boolean awaitReached(long timeoutMillis) throws InterruptedException {
+            return mReached.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        // Where the read that was held started.
+        public long reachedIndex() {
+            return mReachedIndex;
+        }
+
+        public void open() {
+            mOpened.countDown();
+        }
+
+        // Returns true if it held this read, each read is only held by one gate.
+        boolean pass(long index) {
+            if (index < mPosition || !mClaimed.compareAndSet(false, true)) {
+                return false;
+            }
+            mReachedIndex = index;
+            mReached.countDown();
+            try {
+                mOpened.await();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            return true;
+        }
+    }
+
     public static void logTotalStats() {
         Log.d(TAG, "Totals: Calls: " + mTotalCalls + " Loaded: " + Utils.formatFileSize(mTotalLoadBytes) + " Skipped: " + Utils.formatFileSize(mTotalSkipBytes));
         Log.d(TAG, "Delays: Call: " + Utils.formatDuration(mTotalPerCallDelay) + " Loading: " + Utils.formatDuration(mTotalLoadDelay) + " Skipping: " + Utils.formatDuration(mTotalSkipDelay));
@@ -0,0 +1,112 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+/**
+ * Adaptive Replacement Cache (Megiddo and Modha). Resident blocks are split between T1, seen once,
+ * and T2, seen more than once. The ghost lists B1 and B2 remember recently purged blocks so a reload
+ * adapts the target size of T1, which makes the cache resistant to long sequential scans.
+ * A block loaded by cache ahead isn't counted as referenced until it is first read.
+ *
+ * @author Steve Townsend
+ */
+class ArcEvictionPolicy implements EvictionPolicy {
+    private final int mCapacity;
+    private final BlockList mT1;
+    private final BlockList mT2;
+    private final BlockList mB1;
+    private final BlockList mB2;
+    // Blocks in T1 that have been loaded but not read yet.
+    private final BlockList mUnreferenced;
+    // Target size for T1.
+    private int mTargetT1;
+    private boolean mLastLoadFromB2;
+
+    ArcEvictionPolicy(int capacity) {
+        mCapacity = Math.max(1, capacity);
+        mT1 = new BlockList(mCapacity + 1);
+        mT2 = new BlockList(mCapacity + 1);
+        mB1 = new BlockList(mCapacity + 1);
+        mB2 = new BlockList(mCapacity + 1);
+        mUnreferenced = new BlockList(mCapacity + 1);
+    }
+
+    @Override
+    public void blockLoaded(int blockIndex) {
+        if (mT1.contains(blockIndex) || mT2.contains(blockIndex)) {
+            blockUsed(blockIndex);
+            return;
+        }
+        mLastLoadFromB2 = false;
+        if (mB1.remove(blockIndex)) {
+            // Purged from T1 too soon, give T1 more room.
+            mTargetT1 = Math.min(mCapacity, mTargetT1 + Math.max(mB2.size() / Math.max(mB1.size(), 1), 1));
+            mT2.addFirst(blockIndex);
+        } else if (mB2.remove(blockIndex)) {
+            // Purged from T2 too soon, give T2 more room.
+            mTargetT1 = Math.max(0, mTargetT1 - Math.max(mB1.size() / Math.max(mB2.size(), 1), 1));
+            mT2.addFirst(blockIndex);
+            mLastLoadFromB2 = true;
+        } else {
+            mT1.addFirst(blockIndex);
+            mUnreferenced.addFirst(blockIndex);
+        }
+        trimGhosts();
+    }
+
+    @Override
+    public void blockUsed(int blockIndex) {
+        if (mUnreferenced.remove(blockIndex)) {
+            mT1.moveToFront(blockIndex);
+        } else if (mT1.remove(blockIndex)) {
+            mT2.addFirst(blockIndex);
+        } else {
+            mT2.moveToFront(blockIndex);
+        }
+    }
+
+    @Override
+    public void blockRemoved(int blockIndex) {
+        mUnreferenced.remove(blockIndex);
+        if (mT1.remove(blockIndex)) {
+            mB1.addFirst(blockIndex);
+        } else if (mT2.remove(blockIndex)) {
+            mB2.addFirst(blockIndex);
+        }
+        trimGhosts();
+    }
+
+    @Override
+    public int selectBlockToPurge(BlockTable blockTable, BlockFilter filter) {
+        int t1Size = mT1.size();
+        boolean preferT1 = t1Size > 0 && (t1Size > mTargetT1 || (mLastLoadFromB2 && t1Size == mTargetT1));
+        BlockList first = preferT1 ? mT1 : mT2;
+        BlockList second = preferT1 ? mT2 : mT1;
+        int blockIndex = EvictionPolicy.lastPurgeable(first, filter);
+        if (blockIndex < 0) {
+            blockIndex = EvictionPolicy.lastPurgeable(second, filter);
+        }
+        return blockIndex;
+    }
+
+    private void trimGhosts() {
+        while (mT1.size() + mB1.size() > mCapacity && mB1.size() > 0) {
+            mB1.remove(mB1.lastBlock());
+        }
+        while (mT1.size() + mT2.size() + mB1.size() + mB2.size() > mCapacity * 2 && mB2.size() > 0) {
+            mB2.remove(mB2.lastBlock());
+        }
+    }
+}
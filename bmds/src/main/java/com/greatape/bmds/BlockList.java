@@ -0,0 +1,225 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+import java.util.Arrays;
+
+/**
+ * Doubly linked list of block indexes, most recently added at the front, with O(1) lookup, removal
+ * and move to front. Nodes live in parallel int arrays found through an open addressing index, so
+ * nothing is allocated per operation once the list has grown to its working size.
+ *
+ * @author Steve Townsend
+ */
+class BlockList {
+    static final int NoNode = -1;
+
+    private int[] mBlocks;
+    private int[] mPrev;
+    private int[] mNext;
+    private int mHead;
+    private int mTail;
+    private int mFreeHead;
+    private int mSize;
+    // blockIndex -> node, open addressing with NoNode for empty slots.
+    private int[] mIndexKeys;
+    private int[] mIndexNodes;
+    private int mIndexMask;
+
+    BlockList(int expectedBlocks) {
+        int capacity = Math.max(4, expectedBlocks);
+        mBlocks = new int[capacity];
+        mPrev = new int[capacity];
+        mNext = new int[capacity];
+        initFreeList(0);
+        mHead = NoNode;
+        mTail = NoNode;
+        int indexCapacity = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        mIndexKeys = new int[indexCapacity];
+        mIndexNodes = new int[indexCapacity];
+        Arrays.fill(mIndexNodes, NoNode);
+        mIndexMask = indexCapacity - 1;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean contains(int blockIndex) {
+        return findNode(blockIndex) != NoNode;
+    }
+
+    void addFirst(int blockIndex) {
+        if (mFreeHead == NoNode) {
+            grow();
+        }
+        int node = mFreeHead;
+        mFreeHead = mNext[node];
+        mBlocks[node] = blockIndex;
+        linkFirst(node);
+        indexPut(blockIndex, node);
+        mSize++;
+    }
+
+    boolean remove(int blockIndex) {
+        int node = findNode(blockIndex);
+        if (node == NoNode) {
+            return false;
+        }
+        unlink(node);
+        indexRemove(blockIndex);
+        mNext[node] = mFreeHead;
+        mFreeHead = node;
+        mSize--;
+        return true;
+    }
+
+    // Returns false if the block isn't in the list.
+    boolean moveToFront(int blockIndex) {
+        int node = findNode(blockIndex);
+        if (node == NoNode) {
+            return false;
+        }
+        if (node != mHead) {
+            unlink(node);
+            linkFirst(node);
+        }
+        return true;
+    }
+
+    // Walk from the least recent end with lastNode() and previousNode(), until NoNode.
+    int lastNode() {
+        return mTail;
+    }
+
+    int previousNode(int node) {
+        return mPrev[node];
+    }
+
+    int blockAt(int node) {
+        return mBlocks[node];
+    }
+
+    int firstBlock() {
+        return mHead == NoNode ? -1 : mBlocks[mHead];
+    }
+
+    int lastBlock() {
+        return mTail == NoNode ? -1 : mBlocks[mTail];
+    }
+
+    void clear() {
+        initFreeList(0);
+        mHead = NoNode;
+        mTail = NoNode;
+        Arrays.fill(mIndexNodes, NoNode);
+        mSize = 0;
+    }
+
+    private void linkFirst(int node) {
+        mPrev[node] = NoNode;
+        mNext[node] = mHead;
+        if (mHead != NoNode) {
+            mPrev[mHead] = node;
+        }
+        mHead = node;
+        if (mTail == NoNode) {
+            mTail = node;
+        }
+    }
+
+    private void unlink(int node) {
+        int prev = mPrev[node];
+        int next = mNext[node];
+        if (prev != NoNode) {
+            mNext[prev] = next;
+        } else {
+            mHead = next;
+        }
+        if (next != NoNode) {
+            mPrev[next] = prev;
+        } else {
+            mTail = prev;
+        }
+    }
+
+    private void initFreeList(int from) {
+        for (int node = from; node < mBlocks.length; node++) {
+            mNext[node] = node + 1 < mBlocks.length ? node + 1 : NoNode;
+        }
+        mFreeHead = from < mBlocks.length ? from : NoNode;
+    }
+
+    private void grow() {
+        int oldCapacity = mBlocks.length;
+        int newCapacity = oldCapacity * 2;
+        mBlocks = Arrays.copyOf(mBlocks, newCapacity);
+        mPrev = Arrays.copyOf(mPrev, newCapacity);
+        mNext = Arrays.copyOf(mNext, newCapacity);
+        initFreeList(oldCapacity);
+        int[] oldKeys = mIndexKeys;
+        int[] oldNodes = mIndexNodes;
+        mIndexKeys = new int[oldKeys.length * 2];
+        mIndexNodes = new int[oldKeys.length * 2];
+        Arrays.fill(mIndexNodes, NoNode);
+        mIndexMask = mIndexKeys.length - 1;
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldNodes[slot] != NoNode) {
+                indexPut(oldKeys[slot], oldNodes[slot]);
+            }
+        }
+    }
+
+    private int hashSlot(int blockIndex) {
+        int hash = blockIndex * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mIndexMask;
+    }
+
+    private int findNode(int blockIndex) {
+        for (int slot = hashSlot(blockIndex); ; slot = (slot + 1) & mIndexMask) {
+            int node = mIndexNodes[slot];
+            if (node == NoNode || mIndexKeys[slot] == blockIndex) {
+                return node;
+            }
+        }
+    }
+
+    private void indexPut(int blockIndex, int node) {
+        int slot = hashSlot(blockIndex);
+        while (mIndexNodes[slot] != NoNode) {
+            slot = (slot + 1) & mIndexMask;
+        }
+        mIndexKeys[slot] = blockIndex;
+        mIndexNodes[slot] = node;
+    }
+
+    private void indexRemove(int blockIndex) {
+        int slot = hashSlot(blockIndex);
+        while (mIndexKeys[slot] != blockIndex || mIndexNodes[slot] == NoNode) {
+            slot = (slot + 1) & mIndexMask;
+        }
+        // Backward shift deletion, as in BlockTable.
+        int gap = slot;
+        for (int next = (gap + 1) & mIndexMask; mIndexNodes[next] != NoNode; next = (next + 1) & mIndexMask) {
+            int home = hashSlot(mIndexKeys[next]);
+            if (((next - home) & mIndexMask) >= ((next - gap) & mIndexMask)) {
+                mIndexKeys[gap] = mIndexKeys[next];
+                mIndexNodes[gap] = mIndexNodes[next];
+                gap = next;
+            }
+        }
+        mIndexNodes[gap] = NoNode;
+    }
+}
@@ -0,0 +1,78 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+import java.util.ArrayDeque;
+
+/**
+ * Bounded free list of CacheBlock's so steady state streaming re-uses evicted blocks rather than
+ * allocating a new buffer for every load.
+ *
+ * @author Steve Townsend
+ */
+class BlockPool {
+    // Only a handful are ever needed as each load in a full cache purges a block straight back.
+    private final static int MaxPooledBlocks = 4;
+
+    private final int mBufferSize;
+    private final boolean mOffHeap;
+    private final ArrayDeque<CacheBlock> mFreeBlocks;
+    private ThreadLocal<byte[]> mStagingBuffers;
+    // Blocks acquire() had to allocate, as the pool was empty.
+    private int mAllocatedBlocks;
+
+    BlockPool(int bufferSize, boolean offHeap) {
+        mBufferSize = bufferSize;
+        mOffHeap = offHeap;
+        mFreeBlocks = new ArrayDeque<>(MaxPooledBlocks);
+        if (offHeap) {
+            mStagingBuffers = new ThreadLocal<byte[]>() {
+                @Override
+                protected byte[] initialValue() {
+                    return new byte[mBufferSize];
+                }
+            };
+        }
+    }
+
+    synchronized CacheBlock acquire() {
+        CacheBlock block = mFreeBlocks.pollFirst();
+        if (block == null) {
+            block = mOffHeap ? new DirectCacheBlock(this, mBufferSize) : new HeapCacheBlock(mBufferSize);
+            mAllocatedBlocks++;
+        }
+        return block;
+    }
+
+    synchronized int allocatedBlocks() {
+        return mAllocatedBlocks;
+    }
+
+    // Per loading thread, to read into before copying to a direct block.
+    byte[] stagingBuffer() {
+        return mStagingBuffers.get();
+    }
+
+    synchronized void recycle(CacheBlock block) {
+        if (mFreeBlocks.size() < MaxPooledBlocks) {
+            block.reset();
+            mFreeBlocks.addFirst(block);
+        }
+    }
+
+    synchronized void clear() {
+        mFreeBlocks.clear();
+    }
+}
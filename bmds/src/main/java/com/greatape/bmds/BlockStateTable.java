@@ -0,0 +1,140 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+import java.util.Arrays;
+
+/**
+ * Load state of every block in the source, packed 4 bits per block so even multi-hour files take
+ * a few KB. The low 3 bits hold the state, the top bit marks blocks cached ahead that haven't been
+ * read or purged yet. Sized from the source length when known, otherwise grown as blocks are touched. The
+ * blocks with the cached ahead flag are also listed separately so clearing them doesn't scan the
+ * whole file. Not thread safe, MediaCache calls it with itself locked.
+ *
+ * @author Steve Townsend
+ */
+class BlockStateTable {
+    static final int Absent = 0;
+    static final int Queued = 1;
+    static final int Loading = 2;
+    static final int Resident = 3;
+    // Purged from memory, but written to the spill file.
+    static final int Spilled = 4;
+
+    private static final int StateMask = 0x7;
+    private static final int CachedAheadFlag = 0x8;
+    private static final int BlocksPerWord = 16;
+
+    private long[] mWords;
+    // Unordered, only ever as long as the cache ahead window plus the resident blocks.
+    private int[] mCachedAheadBlocks = new int[BlocksPerWord];
+    private int mCachedAheadCount;
+
+    BlockStateTable(int blockCount) {
+        mWords = new long[Math.max(1, (blockCount + BlocksPerWord - 1) / BlocksPerWord)];
+    }
+
+    void ensureCapacity(int blockCount) {
+        int words = (blockCount + BlocksPerWord - 1) / BlocksPerWord;
+        if (words > mWords.length) {
+            mWords = Arrays.copyOf(mWords, words);
+        }
+    }
+
+    int state(int blockIndex) {
+        return bits(blockIndex) & StateMask;
+    }
+
+    // Keeps the cached ahead flag while the block is queued, loading or resident. Once it's dropped
+    // from memory it's no longer cached ahead, whether or not it was read.
+    void setState(int blockIndex, int state) {
+        int cachedAhead = state == Absent || state == Spilled ? 0 : bits(blockIndex) & CachedAheadFlag;
+        setBits(blockIndex, cachedAhead | state);
+    }
+
+    boolean isRequested(int blockIndex) {
+        int state = state(blockIndex);
+        return state == Queued || state == Loading;
+    }
+
+    boolean isCachedAhead(int blockIndex) {
+        return (bits(blockIndex) & CachedAheadFlag) != 0;
+    }
+
+    void setCachedAhead(int blockIndex, boolean cachedAhead) {
+        int bits = bits(blockIndex);
+        setBits(blockIndex, cachedAhead ? bits | CachedAheadFlag : bits & ~CachedAheadFlag);
+    }
+
+    // Clear the cached ahead flag from blocks in [first, last] that aren't resident.
+    void clearCachedAheadNotResident(int first, int last) {
+        // Walk backwards as clearing a flag moves the last listed block into its slot.
+        for (int index = mCachedAheadCount - 1; index >= 0; index--) {
+            int blockIndex = mCachedAheadBlocks[index];
+            int bits = bits(blockIndex);
+            if (blockIndex >= first && blockIndex <= last && (bits & StateMask) != Resident) {
+                setBits(blockIndex, bits & ~CachedAheadFlag);
+            }
+        }
+    }
+
+    int capacity() {
+        return mWords.length * BlocksPerWord;
+    }
+
+    private int bits(int blockIndex) {
+        int word = blockIndex / BlocksPerWord;
+        if (blockIndex < 0 || word >= mWords.length) {
+            return Absent;
+        }
+        return (int) (mWords[word] >>> ((blockIndex % BlocksPerWord) * 4)) & 0xf;
+    }
+
+    private void setBits(int blockIndex, int bits) {
+        int oldBits = bits(blockIndex);
+        if ((oldBits & CachedAheadFlag) != (bits & CachedAheadFlag)) {
+            if ((bits & CachedAheadFlag) != 0) {
+                addCachedAhead(blockIndex);
+            } else {
+                removeCachedAhead(blockIndex);
+            }
+        }
+        int word = blockIndex / BlocksPerWord;
+        if (word >= mWords.length) {
+            if (bits == Absent) {
+                return;
+            }
+            mWords = Arrays.copyOf(mWords, Math.max(word + 1, mWords.length * 2));
+        }
+        int shift = (blockIndex % BlocksPerWord) * 4;
+        mWords[word] = (mWords[word] & ~(0xfL << shift)) | ((long) bits << shift);
+    }
+
+    private void addCachedAhead(int blockIndex) {
+        if (mCachedAheadCount == mCachedAheadBlocks.length) {
+            mCachedAheadBlocks = Arrays.copyOf(mCachedAheadBlocks, mCachedAheadCount * 2);
+        }
+        mCachedAheadBlocks[mCachedAheadCount++] = blockIndex;
+    }
+
+    private void removeCachedAhead(int blockIndex) {
+        for (int index = 0; index < mCachedAheadCount; index++) {
+            if (mCachedAheadBlocks[index] == blockIndex) {
+                mCachedAheadBlocks[index] = mCachedAheadBlocks[--mCachedAheadCount];
+                return;
+            }
+        }
+    }
+}
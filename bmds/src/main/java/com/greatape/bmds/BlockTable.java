@@ -0,0 +1,162 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Open addressing hash table of resident CacheBlock's keyed on their blockIndex. Lookups and inserts
+ * use primitive keys so the readAt() hit path neither boxes nor allocates, the table only allocates
+ * when it has to grow.
+ *
+ * Changes must be made with the owning MediaCache locked, but findUnlocked() can be called at any
+ * time. Slots are published atomically and a grown table is filled before it replaces the old one,
+ * so an unlocked lookup may miss a block that's moving but never returns one for the wrong index.
+ *
+ * @author Steve Townsend
+ */
+class BlockTable {
+    private volatile AtomicReferenceArray<CacheBlock> mSlots;
+    private int mMask;
+    private int mSize;
+
+    BlockTable(int expectedBlocks) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedBlocks) * 2 - 1) << 1;
+        mSlots = new AtomicReferenceArray<>(capacity);
+        mMask = capacity - 1;
+    }
+
+    private static int hashSlot(int blockIndex, int mask) {
+        // Block indexes are sequential, spread them so runs don't cluster together.
+        int hash = blockIndex * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    CacheBlock get(int blockIndex) {
+        AtomicReferenceArray<CacheBlock> slots = mSlots;
+        for (int slot = hashSlot(blockIndex, mMask); ; slot = (slot + 1) & mMask) {
+            CacheBlock cacheBlock = slots.get(slot);
+            if (cacheBlock == null || cacheBlock.blockIndex == blockIndex) {
+                return cacheBlock;
+            }
+        }
+    }
+
+    // Lookup without the owning MediaCache locked, the caller must retain the block and then check
+    // it's still the one in the table with isCurrent() before using it.
+    CacheBlock findUnlocked(int blockIndex) {
+        AtomicReferenceArray<CacheBlock> slots = mSlots;
+        int mask = slots.length() - 1;
+        int slot = hashSlot(blockIndex, mask);
+        // Bounded as entries can shift under us while we probe.
+        for (int probe = 0; probe <= mask; probe++) {
+            CacheBlock cacheBlock = slots.get(slot);
+            if (cacheBlock == null) {
+                return null;
+            }
+            if (cacheBlock.blockIndex == blockIndex) {
+                return cacheBlock;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    boolean isCurrent(CacheBlock cacheBlock, int blockIndex) {
+        return findUnlocked(blockIndex) == cacheBlock;
+    }
+
+    boolean contains(int blockIndex) {
+        return get(blockIndex) != null;
+    }
+
+    // The block must not already be in the table.
+    void put(CacheBlock cacheBlock) {
+        if ((mSize + 1) * 2 > mSlots.length()) {
+            grow();
+        }
+        insert(mSlots, mMask, cacheBlock);
+        mSize++;
+    }
+
+    private static void insert(AtomicReferenceArray<CacheBlock> slots, int mask, CacheBlock cacheBlock) {
+        int slot = hashSlot(cacheBlock.blockIndex, mask);
+        while (slots.get(slot) != null) {
+            slot = (slot + 1) & mask;
+        }
+        slots.set(slot, cacheBlock);
+    }
+
+    CacheBlock remove(int blockIndex) {
+        AtomicReferenceArray<CacheBlock> slots = mSlots;
+        int slot = hashSlot(blockIndex, mMask);
+        CacheBlock removed;
+        while (true) {
+            removed = slots.get(slot);
+            if (removed == null) {
+                return null;
+            }
+            if (removed.blockIndex == blockIndex) {
+                break;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        // Shift following entries back so every probe sequence stays unbroken, no tombstones needed.
+        int gap = slot;
+        for (int next = (gap + 1) & mMask; slots.get(next) != null; next = (next + 1) & mMask) {
+            CacheBlock moving = slots.get(next);
+            int home = hashSlot(moving.blockIndex, mMask);
+            if (((next - home) & mMask) >= ((next - gap) & mMask)) {
+                slots.set(gap, moving);
+                gap = next;
+            }
+        }
+        slots.set(gap, null);
+        mSize--;
+        return removed;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    // For iterating over the table, slotAt() returns null for empty slots.
+    int capacity() {
+        return mSlots.length();
+    }
+
+    CacheBlock slotAt(int slot) {
+        return mSlots.get(slot);
+    }
+
+    void clear() {
+        mSlots = new AtomicReferenceArray<>(mSlots.length());
+        mSize = 0;
+    }
+
+    private void grow() {
+        AtomicReferenceArray<CacheBlock> oldSlots = mSlots;
+        AtomicReferenceArray<CacheBlock> newSlots = new AtomicReferenceArray<>(oldSlots.length() * 2);
+        int newMask = newSlots.length() - 1;
+        for (int slot = 0; slot < oldSlots.length(); slot++) {
+            CacheBlock cacheBlock = oldSlots.get(slot);
+            if (cacheBlock != null) {
+                insert(newSlots, newMask, cacheBlock);
+            }
+        }
+        mMask = newMask;
+        mSlots = newSlots;
+    }
+}
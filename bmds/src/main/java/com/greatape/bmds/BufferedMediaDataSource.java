@@ -14,14 +14,18 @@
  */
 package com.greatape.bmds;
 
+import android.content.ComponentCallbacks2;
 import android.media.MediaDataSource;
 import android.os.Build;
 import android.support.annotation.RequiresApi;
 
 import java.io.DataInput;
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InputStream;
 import java.util.LinkedList;
+import java.util.concurrent.Executor;
 
 /**
  * @author Steve Townsend
@@ -33,17 +37,106 @@ public class BufferedMediaDataSource extends MediaDataSource {
     private MediaCache mMediaCache;
     private LinkedList<BufferedSourceBase> mLinkedList;
     private BufferedSourceBase mSingleSource;
+    private final Object mStreamLock = new Object();
     private Long mSize;
 
+    public enum EvictionPolicyType {
+        // Highest time since last use divided by load count, the original behaviour.
+        Legacy,
+        Lru,
+        // Adaptive Replacement Cache, resistant to long sequential scans.
+        Arc,
+        // Window TinyLFU, admits blocks to the main cache based on use frequency.
+        WTinyLfu
+    }
+
+    public enum Priority {
+        // Behind cache ahead for the current read position.
+        Low,
+        // Alongside cache ahead.
+        Normal,
+        // Ahead of cache ahead, behind only reads that are waiting.
+        High
+    }
+
     public static class BufferConfig {
         public int maxUsedBuffers;
+        // When a global cache budget is set this many buffers are kept for this source even when
+        // other sources need the memory.
+        public int minReservedBuffers;
         public int bufferSize;
         public int cacheAheadCount;
+        // Let the number of blocks cached ahead vary between minCacheAheadCount and
+        // maxCacheAheadCount, starting at cacheAheadCount. It grows while playback is sequential and
+        // shrinks after seeks or when blocks cached ahead are purged unused.
+        public boolean adaptiveCacheAhead;
+        public int minCacheAheadCount;
+        public int maxCacheAheadCount;
+        // When set, cache ahead enough blocks for this much playback time instead, still bounded by
+        // minCacheAheadCount and maxCacheAheadCount. The bitrate is estimated from how fast the
+        // file is being read, unless given with setBitrateHint().
+        public long cacheAheadMillis;
+        // Parse the container's index in the background, MP4's moov or MKV's Cues, and cache ahead
+        // the blocks playback will need next from it, instead of those following the read position.
+        // MKV Cues are also pinned, as they're reread on every seek.
+        public boolean containerAwarePrefetch;
+        // Load this many blocks from the start and end of the file as soon as the source is created,
+        // ahead of any cache ahead, as MediaPlayer reads both while preparing.
+        public int warmupHeadBlocks;
+        public int warmupTailBlocks;
+        // Store cache blocks in direct ByteBuffer's outside of the Java heap, allowing much larger
+        // caches without hitting the app heap limit or adding to GC work.
+        public boolean offHeapBuffers;
+        // Optional directory, normally Context.getCacheDir(), for a memory mapped file holding
+        // blocks purged from memory. Seeking back to these avoids reloading them from the source.
+        public File spillDirectory;
+        public int spillBlockCount;
+        // Optional directory for a block cache that persists between sessions, used by sources
+        // that provide a cacheKey(). persistentCacheSize caps the total size of the directory.
+        public File persistentCacheDirectory;
+        public long persistentCacheSize;
+        public EvictionPolicyType evictionPolicy;
+        // Purge blocks more than playheadBackWindow blocks behind the read position first, and keep
+        // the cache ahead blocks in front of it, giving a longer effective read ahead.
+        public boolean playheadAwareEviction;
+        public int playheadBackWindow;
+        // Blocks at the start and end of the file that are never purged, and don't count towards
+        // maxUsedBuffers. Containers often keep their index at one end, e.g. the MP4 moov atom or
+        // MKV Cues, and MediaPlayer rereads it on every seek.
+        public int pinHeadBlocks;
+        public int pinTailBlocks;
+        // Sources with the same typeName share loads between them in proportion to their
+        // loadWeight, e.g. one with a weight of 2 gets two blocks loaded for each one of a source
+        // with a weight of 1. Reads that are waiting for a block always go first.
+        public int loadWeight;
+        // Milliseconds a typeName's load threads are kept after its last source closes, in case
+        // another opens. Taken from the source that starts them.
+        public long loadThreadTimeout;
 
         public BufferConfig() {
             maxUsedBuffers = 64;
+            minReservedBuffers = 8;
             bufferSize = 128 * 1024;
             cacheAheadCount = 8;
+            adaptiveCacheAhead = false;
+            minCacheAheadCount = 2;
+            maxCacheAheadCount = 32;
+            cacheAheadMillis = 0;
+            containerAwarePrefetch = false;
+            warmupHeadBlocks = 0;
+            warmupTailBlocks = 0;
+            offHeapBuffers = false;
+            spillDirectory = null;
+            spillBlockCount = 1024;
+            persistentCacheDirectory = null;
+            persistentCacheSize = 512L * 1024 * 1024;
+            evictionPolicy = EvictionPolicyType.Legacy;
+            playheadAwareEviction = false;
+            playheadBackWindow = 4;
+            pinHeadBlocks = 0;
+            pinTailBlocks = 0;
+            loadWeight = 1;
+            loadThreadTimeout = 60 * 1000;
         }
     }
 
@@ -52,8 +145,12 @@ public class BufferedMediaDataSource extends MediaDataSource {
     public interface StreamCreator {
         InputStream openStream() throws IOException;
         long length() throws IOException;
-        // All input types with matching names will use the same queue, allowing only one active load at a time.
+        // All input types with matching names will use the same queue, allowing only one active load
+        // at a time unless raised with setLoadConcurrency().
         String typeName();
+        // Unique identity of the source for the persistent cache, e.g. path + length + modified time.
+        // Return null to never use the persistent cache for this source.
+        default String cacheKey() {return null;}
     }
 
     // Use this to create an DataInput derived implementation such as RandomAccessFile or SmbRandomAccessFile
@@ -72,14 +169,69 @@ public class BufferedMediaDataSource extends MediaDataSource {
         default void readData(DataInput dataInput, byte[] buffer, int readLen) throws IOException {dataInput.readFully(buffer, 0, readLen);}
         void seek(DataInput dataInput, long seekPos) throws IOException;
         long length() throws IOException;
-        // All input types with matching names will use the same queue, allowing only one active load at a time.
+        // All input types with matching names will use the same queue, allowing only one active load
+        // at a time unless raised with setLoadConcurrency().
         String typeName();
+        // Unique identity of the source for the persistent cache, e.g. path + length + modified time.
+        // Return null to never use the persistent cache for this source.
+        default String cacheKey() {return null;}
+    }
+
+    // Completion for readAtAsync(). Called on a load thread if the read had to wait for a block,
+    // otherwise on the thread that called readAtAsync(), either way it holds up other loads so
+    // hand any real work off to another thread.
+    public interface ReadListener {
+        // -1 if position is at or past the end of the source, as readAt() returns.
+        void onReadComplete(int bytesRead);
+        void onReadFailed(IOException exception);
+    }
+
+    // Limit the total memory used for cached blocks by all sources in the process. Blocks are taken
+    // from the least recently read sources first, down to their minReservedBuffers.
+    // Pass 0 to remove the limit, leaving each source limited only by its own maxUsedBuffers.
+    public static void setGlobalCacheBudget(long budgetBytes) {
+        CacheBudget.setBudget(budgetBytes);
+    }
+
+    // Allow up to loadThreads blocks of sources with this typeName to load at once. Stream sources
+    // then open a stream per concurrent load, DataInput sources still load one block at a time
+    // each, but different sources of the type load in parallel. Only for types whose
+    // implementation is thread safe, the default is 1. Call before creating sources of the type.
+    public static void setLoadConcurrency(String typeName, int loadThreads) {
+        LoadRunner.setConcurrency(typeName, loadThreads);
+    }
+
+    // Run load threads on the app's executor, e.g. Executors.newCachedThreadPool() with a
+    // ThreadFactory that sets the names and Process.setThreadPriority() it wants. Each typeName in
+    // use keeps setLoadConcurrency() tasks running on it until loadThreadTimeout after its last
+    // source closes, so it must start every task straight away rather than queue any. Pass null to
+    // go back to the default, a cached pool of daemon threads. Call before creating sources.
+    public static void setLoadExecutor(Executor loadExecutor) {
+        LoadRunner.setLoadExecutor(loadExecutor);
+    }
+
+    // Call these from the app's ComponentCallbacks2 onTrimMemory() and onLowMemory(). On memory
+    // pressure every source drops back to a minimal working set around its read position, then
+    // regrows once no more trim requests have been received for a while.
+    public static void onTrimMemory(int level) {
+        CacheBudget.trimMemory(level);
+    }
+
+    public static void onLowMemory() {
+        CacheBudget.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    // How long in milliseconds after the last trim request before sources may regrow, 30 seconds
+    // by default.
+    public static void setMemoryPressureHoldTime(long holdTime) {
+        CacheBudget.setPressureHoldTime(holdTime);
     }
 
     public BufferedMediaDataSource(StreamCreator streamCreator, BufferConfig bufferConfig) throws IOException {
         mLinkedList = new LinkedList<>();
         mStreamCreator = streamCreator;
         mMediaCache = new MediaCache(this, bufferConfig);
+        mMediaCache.startBackgroundWork();
     }
 
     public BufferedMediaDataSource(StreamCreator streamCreator) throws IOException {
@@ -89,6 +241,7 @@ public class BufferedMediaDataSource extends MediaDataSource {
     public BufferedMediaDataSource(DataInputCreator dataInputCreator, BufferConfig bufferConfig) throws IOException {
         mDataInputCreator = dataInputCreator;
         mMediaCache = new MediaCache(this, bufferConfig);
+        mMediaCache.startBackgroundWork();
     }
 
     public BufferedMediaDataSource(DataInputCreator dataInputCreator) throws IOException {
@@ -108,28 +261,83 @@ public class BufferedMediaDataSource extends MediaDataSource {
         return mMediaCache.readAt(position, buffer, offset, size);
     }
 
+    // Reads like readAt() without blocking the caller, so one thread can keep many reads going across
+    // many sources. The listener is called exactly once, when the read completes.
+    public void readAtAsync(long position, byte[] buffer, int offset, int size, ReadListener listener) {
+        mMediaCache.readAtAsync(position, buffer, offset, size, listener);
+    }
+
+    // Synchronized as the warmup may be fetching the size in the background, better to wait for
+    // that than make a second call to the source.
     @Override
-    public long getSize() throws IOException {
+    public synchronized long getSize() throws IOException {
         if (mSize == null) {
-            if (mDataInputCreator != null) {
+            long cachedLength = mMediaCache.cachedSourceLength();
+            if (cachedLength >= 0) {
+                // Avoid a round trip to the source when we've already cached this file.
+                mSize = cachedLength;
+            } else if (mDataInputCreator != null) {
                 mSize = mDataInputCreator.length();
             } else {
                 mSize = mStreamCreator.length();
             }
+            mMediaCache.setSourceLength(mSize);
         }
         return mSize;
     }
 
+    // Keep the blocks covering a byte range, such as a container index, cached until unpinned. The
+    // blocks are loaded in the background if not already cached. Pins are counted, each pin() needs
+    // a matching unpin() with the same range.
+    public void pin(long position, long length) {
+        mMediaCache.pin(position, length);
+    }
+
+    public void unpin(long position, long length) {
+        mMediaCache.unpin(position, length);
+    }
+
+    // Hint that a range will be read soon, such as a resume point or chapter start, loading it in
+    // the background without blocking. At most maxUsedBuffers blocks from position are loaded.
+    public void prefetch(long position, long length, Priority priority) {
+        int loadPriority;
+        switch (priority) {
+            case Low:
+                loadPriority = LoadRunnerClient.PriorityLow;
+                break;
+            case High:
+                loadPriority = LoadRunnerClient.PriorityWarmup;
+                break;
+            default:
+                loadPriority = LoadRunnerClient.PriorityCacheAhead;
+                break;
+        }
+        mMediaCache.prefetch(position, length, loadPriority);
+    }
+
+    // Drops prefetches for the range that haven't started loading yet.
+    public void cancelPrefetch(long position, long length) {
+        mMediaCache.cancelPrefetch(position, length);
+    }
+
+    // The media bitrate, e.g. from MediaExtractor, used with BufferConfig.cacheAheadMillis in place
+    // of the estimated rate. Pass 0 to go back to the estimate.
+    public void setBitrateHint(long bitsPerSecond) {
+        mMediaCache.setBitrateHint(bitsPerSecond);
+    }
+
     @Override
     public void close() throws IOException {
         mMediaCache.close();
-        if (mLinkedList != null) {
-            while (!mLinkedList.isEmpty()) {
-                mLinkedList.removeFirst().close();
+        synchronized (mStreamLock) {
+            if (mLinkedList != null) {
+                while (!mLinkedList.isEmpty()) {
+                    mLinkedList.removeFirst().close();
+                }
+            } else if (mSingleSource != null) {
+                mSingleSource.close();
+                mSingleSource = null;
             }
-        } else if (mSingleSource != null) {
-            mSingleSource.close();
-            mSingleSource = null;
         }
     }
 
@@ -141,33 +349,61 @@ public class BufferedMediaDataSource extends MediaDataSource {
         return mDataInputCreator != null ? mDataInputCreator.typeName() : mStreamCreator.typeName();
     }
 
+    String cacheKey() {
+        return mDataInputCreator != null ? mDataInputCreator.cacheKey() : mStreamCreator.cacheKey();
+    }
+
+    // The returned source is reserved for the caller until passed to releaseStream(), with more
+    // than one load thread another load may be using the nearest stream.
     BufferedSourceBase streamForIndex(int bufferIndex) throws IOException {
-        if (mLinkedList == null) {
-            if (mSingleSource == null) {
-                mSingleSource = createStreamSource(1);
-            }
-            return mSingleSource;
-        }
-        int prevIndex = -1;
-        int lastId = -1;
-        for(int index = 0; index < mLinkedList.size(); index++) {
-            BufferedSourceBase bufferedStream = mLinkedList.get(index);
-            int nextIndex = mMediaCache.blockIndex(bufferedStream.getPosition());
-            if (nextIndex == prevIndex) {
-                bufferedStream.log("Closing matching stream, both loading: ", nextIndex);
-                removeBufferedStream(index - 1);
-                index--;
+        synchronized (mStreamLock) {
+            if (mLinkedList == null) {
+                // A single DataInput can't be shared, loads from it take turns.
+                while (mSingleSource != null && mSingleSource.mInUse) {
+                    try {
+                        mStreamLock.wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (mSingleSource == null) {
+                    mSingleSource = createStreamSource(1);
+                }
+                mSingleSource.mInUse = true;
+                return mSingleSource;
             }
-            if (nextIndex <= bufferIndex) {
-                return bufferedStream;
+            int prevIndex = -1;
+            boolean prevInUse = false;
+            int lastId = -1;
+            for(int index = 0; index < mLinkedList.size(); index++) {
+                BufferedSourceBase bufferedStream = mLinkedList.get(index);
+                int nextIndex = mMediaCache.blockIndex(bufferedStream.getPosition());
+                if (nextIndex == prevIndex && !prevInUse) {
+                    bufferedStream.log("Closing matching stream, both loading: ", nextIndex);
+                    removeBufferedStream(index - 1);
+                    index--;
+                }
+                if (nextIndex <= bufferIndex && !bufferedStream.mInUse) {
+                    bufferedStream.mInUse = true;
+                    return bufferedStream;
+                }
+                prevIndex = nextIndex;
+                prevInUse = bufferedStream.mInUse;
+                lastId = bufferedStream.id();
             }
-            prevIndex = nextIndex;
-            lastId = bufferedStream.id();
+            BufferedSourceBase newStream = createStreamSource(lastId + 1);
+            mLinkedList.add(newStream);
+            newStream.mInUse = true;
+            newStream.log("Created new BufferedMediaStream");
+            return newStream;
+        }
+    }
+
+    void releaseStream(BufferedSourceBase bufferedStream) {
+        synchronized (mStreamLock) {
+            bufferedStream.mInUse = false;
+            mStreamLock.notifyAll();
         }
-        BufferedSourceBase newStream = createStreamSource(lastId + 1);
-        mLinkedList.add(newStream);
-        newStream.log("Created new BufferedMediaStream");
-        return newStream;
     }
 
     private BufferedSourceBase createStreamSource(int id) throws IOException {
@@ -181,11 +417,13 @@ public class BufferedMediaDataSource extends MediaDataSource {
     }
 
     void removeBufferedStream(BufferedSourceBase removeMe) {
-        if (mLinkedList != null) {
-            for (int index = 0; index < mLinkedList.size(); index++) {
-                BufferedSourceBase bufferedStream = mLinkedList.get(index);
-                if (bufferedStream == removeMe) {
-                    removeBufferedStream(index);
+        synchronized (mStreamLock) {
+            if (mLinkedList != null) {
+                for (int index = 0; index < mLinkedList.size(); index++) {
+                    BufferedSourceBase bufferedStream = mLinkedList.get(index);
+                    if (bufferedStream == removeMe) {
+                        removeBufferedStream(index);
+                    }
                 }
             }
         }
@@ -204,6 +442,10 @@ public class BufferedMediaDataSource extends MediaDataSource {
         return mMediaCache.getReadStats();
     }
 
+    int getAllocatedBlocks() {
+        return mMediaCache.getAllocatedBlocks();
+    }
+
     public int getBufferSize() {
         return mMediaCache.getBufferSize();
     }
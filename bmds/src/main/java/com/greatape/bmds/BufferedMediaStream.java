@@ -57,6 +57,9 @@ class BufferedMediaStream extends BufferedSourceBase{
             }
             read += len;
             log("Reading to go=" + (buffer.length - read));
+            if (read < buffer.length) {
+                checkAbort(read);
+            }
         } while (read < buffer.length);
         mPosition += read;
         return read;
@@ -67,9 +70,12 @@ class BufferedMediaStream extends BufferedSourceBase{
         int toSkip = (int)(seekPos - mPosition);
         long skipped = 0;
         do {
-            long len = mInputStream.skip(toSkip);
+            long len = mInputStream.skip(toSkip - skipped);
             if (len <= 0) {
                 BmdsLog.e(TAG, "Error, unexpected EOF");
+                // No longer where mPosition says, so not reusable.
+                mPosition += skipped;
+                mBufferedMediaDataSource.removeBufferedStream(this);
                 throw new EOFException();
             }
             skipped += len;
@@ -24,6 +24,9 @@ abstract class BufferedSourceBase {
     BufferedMediaDataSource mBufferedMediaDataSource;
     long mPosition;
     int mId;
+    private volatile boolean mAbortRequested;
+    // Reserved by a load, guarded by BufferedMediaDataSource's stream lock.
+    boolean mInUse;
 
     BufferedSourceBase(BufferedMediaDataSource bufferedMediaDataSource, int id) {
         mBufferedMediaDataSource = bufferedMediaDataSource;
@@ -50,5 +53,32 @@ abstract class BufferedSourceBase {
 
     abstract void skip(long seekPos) throws IOException;
 
+    // Ask a read in progress to give up at the next chunk it reads, for sources that read in more
+    // than one call. The stream is closed, part way through a block it can't serve block aligned loads.
+    void requestAbort() {
+        mAbortRequested = true;
+    }
+
+    void clearAbort() {
+        mAbortRequested = false;
+    }
+
+    void checkAbort(int read) throws LoadAbortedException {
+        if (mAbortRequested) {
+            mAbortRequested = false;
+            mPosition += read;
+            mBufferedMediaDataSource.removeBufferedStream(this);
+            throw new LoadAbortedException();
+        }
+    }
+
+    static class LoadAbortedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        LoadAbortedException() {
+            super("Load aborted");
+        }
+    }
+
     abstract int read(byte[] buffer) throws IOException;
 }
@@ -0,0 +1,111 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single cache block of up to bufferSize bytes, only the first length bytes are valid. Blocks are
+ * recycled through a BlockPool so must not be used once released.
+ *
+ * @author Steve Townsend
+ */
+abstract class CacheBlock {
+    // Set with the use count while evicted blocks wait for their last reader.
+    private static final int Evicted = 1 << 30;
+
+    int blockIndex;
+    int length;
+    // Use count plus the Evicted flag, atomic so readers can retain and release without any lock.
+    private final AtomicInteger mUseState;
+
+    CacheBlock() {
+        blockIndex = -1;
+        mUseState = new AtomicInteger();
+    }
+
+    // The loads must only be called while the block isn't visible to any other thread. Once it is
+    // any number of readers can copy from it while one thread at a time writes it out.
+
+    // Fill the block from the current position of source, returns the number of bytes read.
+    abstract int load(BufferedSourceBase source) throws IOException;
+
+    abstract void copyTo(int blockOffset, byte[] buffer, int offset, int len);
+
+    // Write the valid bytes to dest at its current position.
+    abstract void writeTo(ByteBuffer dest);
+
+    // Fill the block with len bytes from the current position of src.
+    abstract void loadFrom(ByteBuffer src, int len);
+
+    abstract void writeTo(FileChannel channel, long position) throws IOException;
+
+    abstract void loadFrom(FileChannel channel, long position, int len) throws IOException;
+
+    // Readers that find the block without the owning MediaCache locked must check it's still in the
+    // BlockTable after retaining it, as it may have been evicted and recycled in between. Retains
+    // and releases are always balanced, so one landing on a recycled block does no harm.
+    void retain() {
+        mUseState.incrementAndGet();
+    }
+
+    // Returns true if the block was evicted while in use and should now be recycled.
+    boolean release() {
+        // Claim the recycle, a reader that lost the race may briefly retain it again.
+        return mUseState.decrementAndGet() == Evicted && mUseState.compareAndSet(Evicted, 0);
+    }
+
+    // Called with the owning MediaCache locked once the block is out of the BlockTable, returns true
+    // if it can be recycled straight away.
+    boolean evict() {
+        while (true) {
+            int useState = mUseState.get();
+            if (useState == 0) {
+                return true;
+            }
+            // A reader is still copying out of this block, recycle it when they're finished.
+            if (mUseState.compareAndSet(useState, useState | Evicted)) {
+                return false;
+            }
+        }
+    }
+
+    void reset() {
+        blockIndex = -1;
+        length = 0;
+        // The use count is left alone, a reader that lost the race for this block may not have
+        // released it yet.
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int len = channel.read(buffer, position);
+            if (len < 0) {
+                throw new EOFException("Unexpected end of cache file");
+            }
+            position += len;
+        }
+    }
+}
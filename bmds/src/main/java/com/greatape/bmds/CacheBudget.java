@@ -0,0 +1,121 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+import android.content.ComponentCallbacks2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide memory budget shared by all MediaCache's. When the total size of cached blocks goes
+ * over budget blocks are purged from the least recently read cache that is above its minimum
+ * reservation, so idle sources give up memory to ones that are actively playing.
+ *
+ * @author Steve Townsend
+ */
+class CacheBudget {
+    private static final String TAG = "CacheBudget";
+
+    private static final Object sSyncObject = new Object();
+    private static final List<MediaCache> sCaches = new ArrayList<>();
+    private static final AtomicLong sUsedBytes = new AtomicLong();
+    // How long after the last trim request before caches are allowed to grow again.
+    static final long DefaultPressureHoldTime = 30 * 1000;
+    // Zero for no global budget, each cache is then only limited by its own maxUsedBuffers.
+    private static long sBudgetBytes;
+    private static volatile long sPressureHoldTime = DefaultPressureHoldTime;
+    private static volatile long sPressureEndTime;
+
+    static void setBudget(long budgetBytes) {
+        synchronized (sSyncObject) {
+            sBudgetBytes = budgetBytes;
+        }
+        enforce();
+    }
+
+    static void setPressureHoldTime(long holdTime) {
+        sPressureHoldTime = holdTime;
+    }
+
+    static void register(MediaCache mediaCache) {
+        synchronized (sSyncObject) {
+            sCaches.add(mediaCache);
+        }
+    }
+
+    static void unregister(MediaCache mediaCache) {
+        synchronized (sSyncObject) {
+            sCaches.remove(mediaCache);
+        }
+    }
+
+    // These are called with the MediaCache locked, so must never take sSyncObject.
+    static void blocksAdded(long bytes) {
+        sUsedBytes.addAndGet(bytes);
+    }
+
+    static void blocksRemoved(long bytes) {
+        sUsedBytes.addAndGet(-bytes);
+    }
+
+    static long usedBytes() {
+        return sUsedBytes.get();
+    }
+
+    // Must not be called with any MediaCache locked, we lock caches to purge from them.
+    static void enforce() {
+        synchronized (sSyncObject) {
+            if (sBudgetBytes <= 0) {
+                return;
+            }
+            while (sUsedBytes.get() > sBudgetBytes) {
+                MediaCache victim = null;
+                for (MediaCache mediaCache : sCaches) {
+                    if (mediaCache.canReleaseBlock() &&
+                            (victim == null || mediaCache.lastReadTime() < victim.lastReadTime())) {
+                        victim = mediaCache;
+                    }
+                }
+                if (victim == null || !victim.purgeBlock()) {
+                    BmdsLog.d(TAG, "Unable to get within budget, using " + sUsedBytes.get() + " bytes");
+                    break;
+                }
+            }
+        }
+    }
+
+    static void trimMemory(int level) {
+        // UI_HIDDEN only means we've gone to the background, it isn't a sign of memory pressure.
+        if (level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN || level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return;
+        }
+        BmdsLog.d(TAG, "trimMemory level=" + level);
+        sPressureEndTime = System.currentTimeMillis() + sPressureHoldTime;
+        List<MediaCache> caches;
+        synchronized (sSyncObject) {
+            caches = new ArrayList<>(sCaches);
+        }
+        for (MediaCache mediaCache : caches) {
+            mediaCache.trimToWorkingSet();
+        }
+    }
+
+    // While true caches are limited to their working set, once it ends they regrow as blocks are loaded.
+    static boolean underPressure() {
+        return System.currentTimeMillis() < sPressureEndTime;
+    }
+}
@@ -0,0 +1,74 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+/**
+ * Estimates how fast the media is being played, in bytes per second of wall clock time, from the
+ * progress of sequential reads. Seeks and pauses start a new sample rather than skewing the
+ * estimate. Not thread safe, MediaCache calls it with itself locked.
+ *
+ * @author Steve Townsend
+ */
+class ConsumptionRate {
+    private static final long SampleTime = 500 * 1000000L;
+    // Gaps between reads longer than this are pauses, not slow playback.
+    private static final long IdleTime = 2000 * 1000000L;
+    private static final double Smoothing = 0.25;
+
+    private final long mSeekThreshold;
+    private long mReadEnd;
+    private long mLastReadTime;
+    private long mSampleStartTime;
+    private long mSampleBytes;
+    private double mBytesPerSecond;
+
+    // Reads further than seekThreshold bytes from the last one are treated as seeks.
+    ConsumptionRate(long seekThreshold) {
+        mSeekThreshold = seekThreshold;
+        mReadEnd = -1;
+    }
+
+    void bytesRead(long position, int size, long nanoTime) {
+        long readEnd = position + size;
+        if (mReadEnd < 0 || position > mReadEnd + mSeekThreshold || readEnd < mReadEnd - mSeekThreshold ||
+                nanoTime - mLastReadTime > IdleTime) {
+            mReadEnd = readEnd;
+            mLastReadTime = nanoTime;
+            startSample(nanoTime);
+            return;
+        }
+        mLastReadTime = nanoTime;
+        if (readEnd > mReadEnd) {
+            mSampleBytes += readEnd - mReadEnd;
+            mReadEnd = readEnd;
+        }
+        long elapsed = nanoTime - mSampleStartTime;
+        if (elapsed >= SampleTime) {
+            double sample = mSampleBytes * 1e9 / elapsed;
+            mBytesPerSecond = mBytesPerSecond == 0 ? sample : mBytesPerSecond + Smoothing * (sample - mBytesPerSecond);
+            startSample(nanoTime);
+        }
+    }
+
+    // 0 until a full sample has been taken.
+    long bytesPerSecond() {
+        return (long) mBytesPerSecond;
+    }
+
+    private void startSample(long nanoTime) {
+        mSampleStartTime = nanoTime;
+        mSampleBytes = 0;
+    }
+}
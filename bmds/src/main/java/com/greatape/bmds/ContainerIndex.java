@@ -0,0 +1,76 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Index built from a container's own tables, telling the prefetcher which blocks playback will need
+ * next when the media isn't laid out sequentially in the file.
+ *
+ * @author Steve Townsend
+ */
+interface ContainerIndex {
+
+    interface Source {
+        // Same contract as MediaDataSource.readAt(), but without counting as playback.
+        int readAt(long position, byte[] buffer, int offset, int size) throws IOException;
+    }
+
+    // Fills blocks with the blocks needed after a read at position, in playback order and without
+    // duplicates, up to blocks.length. Returns -1 if position isn't in the indexed media, in which
+    // case the caller should fall back to sequential cache ahead.
+    int upcomingBlocks(long position, int bufferSize, int[] blocks);
+
+    // Most blocks upcomingBlocks() should be asked for, by default the cache ahead count. Straight
+    // after a seek an index may ask for up to maxCacheAhead, the most cache ahead is allowed to grow to.
+    default int upcomingLimit(int cacheAheadCount, int maxCacheAhead, boolean seek) {return cacheAheadCount;}
+
+    // Byte range of an index the player rereads on every seek, worth keeping pinned. 0 length if none.
+    default long pinPosition() {return 0;}
+    default long pinLength() {return 0;}
+
+    // Returns an index for the source, or null if it isn't a container we understand.
+    static ContainerIndex parse(Source source, long length) throws IOException {
+        ContainerIndex containerIndex = Mp4Index.parse(source, length);
+        if (containerIndex == null) {
+            containerIndex = MkvIndex.parse(source, length);
+        }
+        return containerIndex;
+    }
+
+    static void readFully(Source source, long position, byte[] buffer, int size) throws IOException {
+        int offset = 0;
+        while (offset < size) {
+            int len = source.readAt(position + offset, buffer, offset, size - offset);
+            if (len <= 0) {
+                throw new EOFException("Container read failed at " + (position + offset));
+            }
+            offset += len;
+        }
+    }
+
+    // Adds blockIndex to blocks unless already there, returns the new count.
+    static int addBlock(int[] blocks, int count, int blockIndex) {
+        for (int index = 0; index < count; index++) {
+            if (blocks[index] == blockIndex) {
+                return count;
+            }
+        }
+        blocks[count] = blockIndex;
+        return count + 1;
+    }
+}
@@ -0,0 +1,103 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * CacheBlock stored off the Java heap in a direct ByteBuffer, this keeps large caches out of the
+ * app heap limit and away from the GC. Sources can only read into arrays so loads go through a
+ * per thread staging array owned by the BlockPool.
+ *
+ * @author Steve Townsend
+ */
+class DirectCacheBlock extends CacheBlock {
+    private final ByteBuffer mData;
+    private final BlockPool mBlockPool;
+    // Relative gets are the only bulk gets before API 34, so everything that reads the block while
+    // other threads may be too uses a view with its own position. One is kept spare, taken and put
+    // back without locking, a reader that finds it taken makes its own.
+    private final AtomicReference<ByteBuffer> mSpareView;
+
+    DirectCacheBlock(BlockPool blockPool, int bufferSize) {
+        mBlockPool = blockPool;
+        mData = ByteBuffer.allocateDirect(bufferSize);
+        mSpareView = new AtomicReference<>(mData.duplicate());
+    }
+
+    @Override
+    int load(BufferedSourceBase source) throws IOException {
+        byte[] staging = mBlockPool.stagingBuffer();
+        int len = source.read(staging);
+        mData.clear();
+        mData.put(staging, 0, len);
+        return len;
+    }
+
+    @Override
+    void copyTo(int blockOffset, byte[] buffer, int offset, int len) {
+        ByteBuffer view = takeView();
+        view.position(blockOffset);
+        view.get(buffer, offset, len);
+        mSpareView.lazySet(view);
+    }
+
+    @Override
+    void writeTo(ByteBuffer dest) {
+        ByteBuffer view = takeView();
+        view.limit(length);
+        dest.put(view);
+        mSpareView.lazySet(view);
+    }
+
+    @Override
+    void loadFrom(ByteBuffer src, int len) {
+        ByteBuffer source = src.duplicate();
+        source.limit(source.position() + len);
+        mData.clear();
+        mData.put(source);
+        length = len;
+    }
+
+    @Override
+    void writeTo(FileChannel channel, long position) throws IOException {
+        ByteBuffer view = takeView();
+        view.limit(length);
+        writeFully(channel, view, position);
+        mSpareView.lazySet(view);
+    }
+
+    @Override
+    void loadFrom(FileChannel channel, long position, int len) throws IOException {
+        mData.clear();
+        mData.limit(len);
+        readFully(channel, mData, position);
+        mData.clear();
+        length = len;
+    }
+
+    // Returns a cleared view of the whole block.
+    private ByteBuffer takeView() {
+        ByteBuffer view = mSpareView.getAndSet(null);
+        if (view == null) {
+            view = mData.duplicate();
+        }
+        view.clear();
+        return view;
+    }
+}
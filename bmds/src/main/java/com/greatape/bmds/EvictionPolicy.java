@@ -0,0 +1,73 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+/**
+ * Chooses which resident block a MediaCache purges. The cache reports every block loaded, used and
+ * removed, all calls are made with the owning MediaCache locked.
+ *
+ * @author Steve Townsend
+ */
+interface EvictionPolicy {
+
+    interface BlockFilter {
+        // False for blocks that must stay resident, e.g. the block that has only just been loaded.
+        boolean canPurge(int blockIndex);
+    }
+
+    void blockLoaded(int blockIndex);
+
+    // Only called for the first of a run of reads from the same block.
+    void blockUsed(int blockIndex);
+
+    void blockRemoved(int blockIndex);
+
+    // Returns the block to purge, or -1 if there are none the filter allows.
+    int selectBlockToPurge(BlockTable blockTable, BlockFilter filter);
+
+    static EvictionPolicy create(BufferedMediaDataSource.BufferConfig bufferConfig, ReadStats readStats,
+                                 PlayheadEvictionPolicy.AheadWindow aheadWindow) {
+        EvictionPolicy evictionPolicy = create(bufferConfig.evictionPolicy, bufferConfig.maxUsedBuffers, readStats);
+        if (bufferConfig.playheadAwareEviction) {
+            evictionPolicy = new PlayheadEvictionPolicy(evictionPolicy, bufferConfig.playheadBackWindow, aheadWindow);
+        }
+        return evictionPolicy;
+    }
+
+    static EvictionPolicy create(BufferedMediaDataSource.EvictionPolicyType type, int capacity, ReadStats readStats) {
+        switch (type) {
+            case Lru:
+                return new LruEvictionPolicy(capacity);
+            case Arc:
+                return new ArcEvictionPolicy(capacity);
+            case WTinyLfu:
+                return new TinyLfuEvictionPolicy(capacity);
+            case Legacy:
+            default:
+                return new LegacyEvictionPolicy(readStats);
+        }
+    }
+
+    // Find the least recent block in list the filter allows us to purge, -1 if there isn't one.
+    static int lastPurgeable(BlockList blockList, BlockFilter filter) {
+        for (int node = blockList.lastNode(); node != BlockList.NoNode; node = blockList.previousNode(node)) {
+            int blockIndex = blockList.blockAt(node);
+            if (filter.canPurge(blockIndex)) {
+                return blockIndex;
+            }
+        }
+        return -1;
+    }
+}
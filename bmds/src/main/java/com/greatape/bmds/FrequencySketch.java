@@ -0,0 +1,88 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+/**
+ * Count-min sketch of block use frequencies with four bit counters, four rows of sixteen counters
+ * per long. All counters are halved after a sample period so old popularity fades.
+ *
+ * @author Steve Townsend
+ */
+class FrequencySketch {
+    private static final int Depth = 4;
+    private static final int[] Seeds = {0x97cb3127, 0xb6a5f38b, 0x4fc5a3e1, 0x6a09e667};
+    private static final long ResetMask = 0x7777777777777777L;
+
+    private final long[] mTable;
+    private final int mRowLongs;
+    private final int mWidthMask;
+    private final int mSampleSize;
+    private int mAdditions;
+
+    FrequencySketch(int capacity) {
+        int width = Integer.highestOneBit(Math.max(64, capacity * 2) - 1) << 1;
+        mWidthMask = width - 1;
+        mRowLongs = width / 16;
+        mTable = new long[mRowLongs * Depth];
+        mSampleSize = Math.max(10 * capacity, 64);
+    }
+
+    int frequency(int blockIndex) {
+        int frequency = 15;
+        for (int row = 0; row < Depth; row++) {
+            int counter = counterIndex(blockIndex, row);
+            int value = (int) ((mTable[longIndex(counter, row)] >>> shift(counter)) & 0xF);
+            frequency = Math.min(frequency, value);
+        }
+        return frequency;
+    }
+
+    void increment(int blockIndex) {
+        boolean added = false;
+        for (int row = 0; row < Depth; row++) {
+            int counter = counterIndex(blockIndex, row);
+            int longIndex = longIndex(counter, row);
+            int shift = shift(counter);
+            if (((mTable[longIndex] >>> shift) & 0xF) < 15) {
+                mTable[longIndex] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++mAdditions >= mSampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int index = 0; index < mTable.length; index++) {
+            mTable[index] = (mTable[index] >>> 1) & ResetMask;
+        }
+        mAdditions /= 2;
+    }
+
+    private int counterIndex(int blockIndex, int row) {
+        int hash = (blockIndex + 1) * Seeds[row];
+        hash ^= hash >>> 15;
+        return hash & mWidthMask;
+    }
+
+    private int longIndex(int counter, int row) {
+        return row * mRowLongs + (counter >>> 4);
+    }
+
+    private int shift(int counter) {
+        return (counter & 15) << 2;
+    }
+}
@@ -0,0 +1,71 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * CacheBlock stored in a byte array on the Java heap.
+ *
+ * @author Steve Townsend
+ */
+class HeapCacheBlock extends CacheBlock {
+    private final byte[] mData;
+    // Wraps mData for channel I/O without allocating per transfer.
+    private final ByteBuffer mWrapped;
+
+    HeapCacheBlock(int bufferSize) {
+        mData = new byte[bufferSize];
+        mWrapped = ByteBuffer.wrap(mData);
+    }
+
+    @Override
+    int load(BufferedSourceBase source) throws IOException {
+        return source.read(mData);
+    }
+
+    @Override
+    void copyTo(int blockOffset, byte[] buffer, int offset, int len) {
+        System.arraycopy(mData, blockOffset, buffer, offset, len);
+    }
+
+    @Override
+    void writeTo(ByteBuffer dest) {
+        dest.put(mData, 0, length);
+    }
+
+    @Override
+    void loadFrom(ByteBuffer src, int len) {
+        src.get(mData, 0, len);
+        length = len;
+    }
+
+    @Override
+    void writeTo(FileChannel channel, long position) throws IOException {
+        mWrapped.clear();
+        mWrapped.limit(length);
+        writeFully(channel, mWrapped, position);
+    }
+
+    @Override
+    void loadFrom(FileChannel channel, long position, int len) throws IOException {
+        mWrapped.clear();
+        mWrapped.limit(len);
+        readFully(channel, mWrapped, position);
+        length = len;
+    }
+}
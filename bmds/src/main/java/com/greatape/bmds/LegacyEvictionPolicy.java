@@ -0,0 +1,47 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+/**
+ * The original heuristic, purges the block with the highest time since last used divided by the
+ * number of times it has been loaded. Scans every resident block on each purge.
+ *
+ * @author Steve Townsend
+ */
+class LegacyEvictionPolicy implements EvictionPolicy {
+    private final ReadStats mReadStats;
+
+    LegacyEvictionPolicy(ReadStats readStats) {
+        mReadStats = readStats;
+    }
+
+    @Override
+    public void blockLoaded(int blockIndex) {
+        // ReadStats is updated by MediaCache for all policies.
+    }
+
+    @Override
+    public void blockUsed(int blockIndex) {
+    }
+
+    @Override
+    public void blockRemoved(int blockIndex) {
+    }
+
+    @Override
+    public int selectBlockToPurge(BlockTable blockTable, BlockFilter filter) {
+        return mReadStats.selectBlockToPurge(blockTable, filter);
+    }
+}
@@ -17,14 +17,22 @@ package com.greatape.bmds;
 import android.os.Build;
 import android.support.annotation.RequiresApi;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Steve Townsend
@@ -33,54 +41,208 @@ import java.util.concurrent.Semaphore;
 class LoadRunner implements Runnable {
     final static String TAG = "LoadRunner";
 
-    private final static long CloseThreadTimeOut = 60 * 1000;
-    // Due to issues with JCIF's not handling multi-threaded access we ensure only one thread is
-    // ever active at a time.
+    // How long the idle scheduler's thread waits for more to do before exiting.
+    private final static long IdleSchedulerKeepAlive = 1000;
+    // Due to issues with JCIF's not handling multi-threaded access we default to only one thread
+    // ever being active at a time per type, types known to be safe can allow more.
     private static Map<String, LoadRunner> sLoadRunnerInstances = new HashMap<>();
+    private static Map<String, Integer> sConcurrency = new HashMap<>();
     private final static Object sSyncObject = new Object();
+    // Run the load threads, and the idle shutdown of every LoadRunner, so opening and closing
+    // sources doesn't keep starting new threads. The default pool is used when the app hasn't set
+    // an executor, ours to shut down when it does.
+    private static Executor sLoadExecutor;
+    private static ExecutorService sDefaultExecutor;
+    private static ScheduledThreadPoolExecutor sIdleScheduler;
 
-    private Thread mThread;
+    private final int mLoadThreads;
+    private final long mCloseThreadTimeOut;
     private Semaphore mLoadSemaphore;
+    // Guards the schedule, mBlockingLoads, mActiveClients and each client's queued loads.
+    private final Object mScheduleLock = new Object();
+    // Loads a reader is blocked on, from any client, go ahead of everything else.
+    private final PriorityQueue<LoadRunnerClient.LoadItem> mBlockingLoads;
+    // Clients with other loads queued, served deficit round robin by their load weight.
+    private final ArrayDeque<LoadRunnerClient> mActiveClients;
+    private long mNextSequence;
     private boolean mStopped;
     private final List<LoadRunnerClient> mClientList;
     private String mTypeName;
-    private Timer mTimer;
+    private ScheduledFuture<?> mCloseFuture;
 
-    static LoadRunnerClient addNewClient(MediaCache mediaCache, String typeName) {
-        LoadRunner loadRunner = sLoadRunnerInstances.get(typeName);
+    // Takes effect the next time a LoadRunner is started for the type, i.e. when no sources of
+    // that type have been open for its close thread timeout.
+    static void setConcurrency(String typeName, int loadThreads) {
         synchronized (sSyncObject) {
+            sConcurrency.put(typeName, Math.max(1, loadThreads));
+        }
+    }
+
+    // Takes effect for LoadRunners started after this, null to go back to the default. Those
+    // already running on the default pool carry on until they stop, it just takes no new tasks.
+    static void setLoadExecutor(Executor loadExecutor) {
+        synchronized (sSyncObject) {
+            if (loadExecutor != null && sDefaultExecutor != null) {
+                sDefaultExecutor.shutdown();
+                sDefaultExecutor = null;
+            }
+            sLoadExecutor = loadExecutor;
+        }
+    }
+
+    // Must be called with sSyncObject locked.
+    private static Executor loadExecutor() {
+        if (sLoadExecutor != null) {
+            return sLoadExecutor;
+        }
+        if (sDefaultExecutor == null) {
+            sDefaultExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger mThreadCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "BmdsLoadRunner-" + mThreadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sDefaultExecutor;
+    }
+
+    // Must be called with sSyncObject locked.
+    private static ScheduledThreadPoolExecutor idleScheduler() {
+        if (sIdleScheduler == null) {
+            sIdleScheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "BmdsIdleShutdown");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // Let the thread go once nothing's left to shut down, and don't hold on to cancelled
+            // shutdowns until they would have run.
+            sIdleScheduler.setKeepAliveTime(IdleSchedulerKeepAlive, TimeUnit.MILLISECONDS);
+            sIdleScheduler.allowCoreThreadTimeOut(true);
+            sIdleScheduler.setRemoveOnCancelPolicy(true);
+        }
+        return sIdleScheduler;
+    }
+
+    // closeThreadTimeOut is only used if this starts the type's LoadRunner, for how long it keeps
+    // its load threads after the last source of the type closes.
+    static LoadRunnerClient addNewClient(MediaCache mediaCache, String typeName, int loadWeight, long closeThreadTimeOut) {
+        LoadRunner loadRunner;
+        synchronized (sSyncObject) {
+            loadRunner = sLoadRunnerInstances.get(typeName);
             if (loadRunner == null) {
-                loadRunner = new LoadRunner(typeName);
+                Integer loadThreads = sConcurrency.get(typeName);
+                loadRunner = new LoadRunner(typeName, loadThreads != null ? loadThreads : 1, closeThreadTimeOut);
                 sLoadRunnerInstances.put(typeName, loadRunner);
             } else {
                 loadRunner.cancelCloseTimer();
             }
         }
-        return loadRunner.addClient(mediaCache);
+        return loadRunner.addClient(mediaCache, loadWeight);
     }
 
-    private LoadRunner(String typeName) {
+    private LoadRunner(String typeName, int loadThreads, long closeThreadTimeOut) {
         mTypeName = typeName;
+        mCloseThreadTimeOut = closeThreadTimeOut;
         mLoadSemaphore = new Semaphore(0);
         mClientList = Collections.synchronizedList(new ArrayList<>());
-        mThread = new Thread(this);
-        BmdsLog.d(TAG, "Created new LoadRunner thread: " + mThread.getName());
-        mThread.start();
+        mBlockingLoads = new PriorityQueue<>(16, LoadRunner::compareLoads);
+        mActiveClients = new ArrayDeque<>();
+        mLoadThreads = loadThreads;
+        Executor executor = loadExecutor();
+        for (int index = 0; index < loadThreads; index++) {
+            executor.execute(this);
+        }
+        BmdsLog.d(TAG, "Started " + loadThreads + " load threads for " + typeName);
     }
 
-    private LoadRunnerClient addClient(MediaCache mediaCache) {
+    private LoadRunnerClient addClient(MediaCache mediaCache, int loadWeight) {
         LoadRunnerClient client;
         synchronized (sSyncObject) {
-            client = new LoadRunnerClient(mediaCache, this);
+            client = new LoadRunnerClient(mediaCache, this, loadWeight);
             mClientList.add(client);
         }
         return client;
     }
 
-    void releaseSemaphore() {
+    // Loads a player is blocked on go first, then the rest by deadline, then in the order requested.
+    static int compareLoads(LoadRunnerClient.LoadItem item1, LoadRunnerClient.LoadItem item2) {
+        boolean blocking1 = item1.priority == LoadRunnerClient.PriorityBlocking;
+        boolean blocking2 = item2.priority == LoadRunnerClient.PriorityBlocking;
+        if (blocking1 != blocking2) {
+            return blocking1 ? -1 : 1;
+        }
+        if (!blocking1 && item1.deadline != item2.deadline) {
+            // nanoTime() values can wrap, only their difference is meaningful.
+            return item1.deadline - item2.deadline < 0 ? -1 : 1;
+        }
+        return Long.compare(item1.sequence, item2.sequence);
+    }
+
+    // Whether a new request for a queued load should move it up the schedule.
+    static boolean isMoreUrgent(int priority, long deadline, LoadRunnerClient.LoadItem loadItem) {
+        if (priority == LoadRunnerClient.PriorityBlocking || loadItem.priority == LoadRunnerClient.PriorityBlocking) {
+            return priority > loadItem.priority;
+        }
+        return deadline - loadItem.deadline < 0;
+    }
+
+    // Must not be called with a client's queue locked.
+    void schedule(LoadRunnerClient.LoadItem loadItem) {
+        synchronized (mScheduleLock) {
+            loadItem.sequence = mNextSequence++;
+            addToSchedule(loadItem);
+        }
         mLoadSemaphore.release();
     }
 
+    // Must not be called with a client's queue locked. Queues a load that isn't queued or running
+    // again, with a new priority and deadline.
+    void schedule(LoadRunnerClient.LoadItem loadItem, int priority, long deadline) {
+        synchronized (mScheduleLock) {
+            loadItem.priority = priority;
+            loadItem.deadline = deadline;
+            loadItem.sequence = mNextSequence++;
+            addToSchedule(loadItem);
+        }
+        mLoadSemaphore.release();
+    }
+
+    // Must not be called with a client's queue locked. Moves a queued load to its new place, the heaps
+    // can't take a change of priority or deadline in place. It has a permit already.
+    void reschedule(LoadRunnerClient.LoadItem loadItem, int priority, long deadline) {
+        synchronized (mScheduleLock) {
+            if (!isMoreUrgent(priority, deadline, loadItem)) {
+                return;
+            }
+            PriorityQueue<LoadRunnerClient.LoadItem> queued = loadItem.priority == LoadRunnerClient.PriorityBlocking ?
+                    mBlockingLoads : loadItem.client().mSchedule;
+            // Not there if a load thread has just taken it, then it's loading anyway.
+            if (queued.remove(loadItem)) {
+                loadItem.priority = Math.max(priority, loadItem.priority);
+                loadItem.deadline = deadline;
+                addToSchedule(loadItem);
+            }
+        }
+    }
+
+    // Must be called with mScheduleLock locked.
+    private void addToSchedule(LoadRunnerClient.LoadItem loadItem) {
+        if (loadItem.priority == LoadRunnerClient.PriorityBlocking) {
+            mBlockingLoads.add(loadItem);
+        } else {
+            LoadRunnerClient client = loadItem.client();
+            client.addToSchedule(loadItem);
+            if (!client.mIsScheduled) {
+                client.mIsScheduled = true;
+                mActiveClients.addLast(client);
+            }
+        }
+    }
+
     boolean acquireSemaphore() {
         return mLoadSemaphore.tryAcquire();
     }
@@ -91,29 +253,29 @@ class LoadRunner implements Runnable {
         synchronized (sSyncObject) {
             mClientList.remove(loadRunnerClient);
             if (mClientList.isEmpty()) {
-                mTimer = new Timer();
-                mTimer.schedule(new TimerTask() {
-                    @Override
-                    public void run() {
-                        synchronized (sSyncObject) {
-                            if (!mClientList.isEmpty()) {
-                                return;
-                            }
-                            sLoadRunnerInstances.remove(mTypeName);
-                            BmdsLog.d(TAG, "remove() Stopping thread");
-                            mStopped = true;
-                            mLoadSemaphore.release();
-                        }
-                    }
-                }, CloseThreadTimeOut);
+                cancelCloseTimer();
+                mCloseFuture = idleScheduler().schedule(this::stopIfIdle, mCloseThreadTimeOut, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void stopIfIdle() {
+        synchronized (sSyncObject) {
+            if (!mClientList.isEmpty()) {
+                return;
             }
+            sLoadRunnerInstances.remove(mTypeName);
+            BmdsLog.d(TAG, "remove() Stopping thread");
+            mStopped = true;
+            mLoadSemaphore.release(mLoadThreads);
         }
     }
 
+    // Must be called with sSyncObject locked.
     private void cancelCloseTimer() {
-        if (mTimer != null) {
-            mTimer.cancel();
-            mTimer = null;
+        if (mCloseFuture != null) {
+            mCloseFuture.cancel(false);
+            mCloseFuture = null;
         }
     }
 
@@ -123,18 +285,7 @@ class LoadRunner implements Runnable {
             try {
                 mLoadSemaphore.acquire();
                 if (!mStopped) {
-                    LoadRunnerClient.LoadItem loadItem = null;
-                    synchronized (sSyncObject) {
-                        for (LoadRunnerClient client : mClientList) {
-                            loadItem = client.findLoadItem();
-                            if (loadItem != null) {
-                                break;
-                            }
-                        }
-                        if (loadItem != null) {
-                            loadItem.setActive();
-                        }
-                    }
+                    LoadRunnerClient.LoadItem loadItem = nextLoad();
                     if (loadItem != null) {
                         loadItem.read();
                     }
@@ -145,4 +296,39 @@ class LoadRunner implements Runnable {
         } while (!mStopped);
         BmdsLog.d(TAG, "run() QUIT");
     }
+
+    // Takes the oldest blocking load, or failing that the earliest deadline load of the client whose
+    // turn it is. Each client gets loadWeight loads in a row before the next client's turn, so a
+    // source caching ahead hard can't starve another playing from the same server.
+    private LoadRunnerClient.LoadItem nextLoad() {
+        synchronized (mScheduleLock) {
+            LoadRunnerClient.LoadItem loadItem = takeLoad(mBlockingLoads);
+            while (loadItem == null && !mActiveClients.isEmpty()) {
+                LoadRunnerClient client = mActiveClients.peekFirst();
+                if (client.mDeficit <= 0) {
+                    client.mDeficit += client.mLoadWeight;
+                }
+                loadItem = takeLoad(client.mSchedule);
+                if (loadItem == null) {
+                    mActiveClients.removeFirst();
+                    client.mIsScheduled = false;
+                    client.mDeficit = 0;
+                } else if (--client.mDeficit <= 0) {
+                    mActiveClients.addLast(mActiveClients.removeFirst());
+                }
+            }
+            return loadItem;
+        }
+    }
+
+    // Must be called with mScheduleLock locked. Drops cancelled loads on the way.
+    private static LoadRunnerClient.LoadItem takeLoad(PriorityQueue<LoadRunnerClient.LoadItem> loads) {
+        LoadRunnerClient.LoadItem loadItem;
+        while ((loadItem = loads.poll()) != null) {
+            if (loadItem.activate()) {
+                return loadItem;
+            }
+        }
+        return null;
+    }
 }
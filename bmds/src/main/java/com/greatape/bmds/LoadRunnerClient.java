@@ -14,12 +14,16 @@
  */
 package com.greatape.bmds;
 
+import android.util.SparseArray;
+
 import java.io.EOFException;
 import java.io.IOException;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
 
 import static com.greatape.bmds.LoadRunner.TAG;
@@ -28,141 +32,270 @@ import static com.greatape.bmds.LoadRunner.TAG;
  * @author Steve Townsend
  */
 class LoadRunnerClient {
+    // Loads a player is blocked on run first, the rest by the LoadRunner taking turns between its
+    // clients and in each client's turn by the deadline MediaCache gives them from their priority
+    // and distance ahead of the read position.
+    static final int PriorityLow = 0;
+    static final int PriorityCacheAhead = 1;
+    static final int PriorityWarmup = 2;
+    static final int PriorityBlocking = 3;
+
+    // Loads cancelled or completed stay in the schedule until they reach the head, or until it
+    // grows past this and is compacted.
+    private final static int MinCompactSize = 256;
+
     private final MediaCache mMediaCache;
-    private final List<LoadItem> mLoadQueue;
+    // The one load queued or running for each block, any number of requests for the block join it.
+    private final SparseArray<LoadItem> mLoads;
     private LoadRunner mLoadRunner;
+    private boolean mClosed;
+    // The LoadRunner's scheduling state for this client, guarded by its schedule lock. Queued
+    // non-blocking loads earliest deadline first, and this client's share of the loads.
+    final PriorityQueue<LoadItem> mSchedule;
+    final int mLoadWeight;
+    int mDeficit;
+    boolean mIsScheduled;
+    private int mCompactSize;
 
-    LoadRunnerClient(MediaCache mediaCache, LoadRunner loadRunner) {
+    LoadRunnerClient(MediaCache mediaCache, LoadRunner loadRunner, int loadWeight) {
         mMediaCache = mediaCache;
         mLoadRunner = loadRunner;
-        mLoadQueue = Collections.synchronizedList(new LinkedList<LoadItem>());
+        mLoads = new SparseArray<>();
+        mSchedule = new PriorityQueue<>(16, LoadRunner::compareLoads);
+        mLoadWeight = Math.max(1, loadWeight);
+        mCompactSize = MinCompactSize;
+    }
+
+    // Must be called with the LoadRunner's schedule lock locked.
+    void addToSchedule(LoadItem loadItem) {
+        mSchedule.add(loadItem);
+        if (mSchedule.size() > mCompactSize) {
+            Iterator<LoadItem> iterator = mSchedule.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().isRemoved()) {
+                    iterator.remove();
+                }
+            }
+            mCompactSize = Math.max(MinCompactSize, mSchedule.size() * 2);
+        }
+    }
+
+    // Called on the load thread when a load someone is waiting for without blocking finishes, with
+    // no result if the block is past the end of the source or the source was closed.
+    interface LoadListener {
+        void loadComplete(CacheBlock result, IOException exception);
     }
 
-    LoadItem requestLoad(int blockIndex, boolean priority) {
-        synchronized(mLoadQueue) {
-            BmdsLog.d(TAG, "Queuing load, priority=" + priority + " for", blockIndex);
-            LoadItem loadItem = new LoadItem(blockIndex, priority);
-            mLoadQueue.add(loadItem);
-            mLoadRunner.releaseSemaphore();
-            return loadItem;
+    // The deadline is a System.nanoTime() time. The listener may be null. Joins the load already
+    // queued or running for the block if there is one, moving it up if this request is more urgent.
+    LoadItem requestLoad(int blockIndex, boolean blocking, int priority, long deadline, LoadListener listener) {
+        LoadItem loadItem;
+        boolean isNew = false;
+        boolean isUpgrade = false;
+        boolean closed = false;
+        synchronized(mLoads) {
+            loadItem = mLoads.get(blockIndex);
+            if (loadItem == null) {
+                BmdsLog.d(TAG, "Queuing load, blocking=" + blocking + " priority=" + priority + " for", blockIndex);
+                loadItem = new LoadItem(blockIndex, priority, deadline);
+                if (mClosed) {
+                    // Never going to be loaded now, MediaCache doesn't request loads with a
+                    // listener once closed so only a blocked request needs releasing.
+                    loadItem.removed = true;
+                    closed = true;
+                } else {
+                    mLoads.put(blockIndex, loadItem);
+                    isNew = true;
+                }
+            } else if (!loadItem.isActive && LoadRunner.isMoreUrgent(priority, deadline, loadItem)) {
+                BmdsLog.d(TAG, "Raising load, priority=" + priority + " for", blockIndex);
+                isUpgrade = true;
+            }
+            if (blocking && loadItem.done == null) {
+                loadItem.done = new CountDownLatch(1);
+            }
+            if (listener != null) {
+                if (loadItem.listeners == null) {
+                    loadItem.listeners = new ArrayList<>(1);
+                }
+                loadItem.listeners.add(listener);
+            }
+        }
+        if (isNew) {
+            mLoadRunner.schedule(loadItem);
+        } else if (isUpgrade) {
+            mLoadRunner.reschedule(loadItem, priority, deadline);
+        } else if (closed && blocking) {
+            loadItem.done.countDown();
         }
+        return loadItem;
     }
+
     public void close() {
         mLoadRunner.remove(this);
-        Semaphore waitForClose = null;
-        synchronized(mLoadQueue) {
-            for (LoadItem loadItem : mLoadQueue) {
+        List<Semaphore> waitForClose = new ArrayList<>();
+        List<LoadItem> dropped = new ArrayList<>();
+        synchronized(mLoads) {
+            mClosed = true;
+            for (int index = mLoads.size() - 1; index >= 0; index--) {
+                LoadItem loadItem = mLoads.valueAt(index);
                 if (loadItem.isActive) {
                     loadItem.closeSemaphore = new Semaphore(0);
-                    waitForClose = loadItem.closeSemaphore;
+                    waitForClose.add(loadItem.closeSemaphore);
+                } else {
+                    // Never going to be loaded now, release anyone waiting with no result.
+                    mLoads.removeAt(index);
+                    loadItem.removed = true;
+                    dropped.add(loadItem);
                 }
             }
         }
-        if (waitForClose != null) {
+        for (LoadItem loadItem : dropped) {
+            loadItem.notifyWaiters();
+        }
+        for (Semaphore closeSemaphore : waitForClose) {
             try {
-                waitForClose.acquire();
+                closeSemaphore.acquire();
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
         }
     }
 
-    boolean hasRequestForBlock(int blockIndex) {
-        synchronized(mLoadQueue) {
-            for(LoadItem loadItem : mLoadQueue) {
-                if (loadItem.blockIndex == blockIndex) {
-                    return true;
+    interface CancelFilter {
+        boolean cancel(int blockIndex, int priority);
+    }
+
+    // Drops queued loads the filter selects that nobody is waiting for, loads already running carry
+    // on. Returns the blocks of the loads dropped.
+    int[] cancelLoads(CancelFilter cancelFilter) {
+        int[] cancelled;
+        int cancelCount = 0;
+        synchronized(mLoads) {
+            cancelled = new int[mLoads.size()];
+            for (int index = mLoads.size() - 1; index >= 0; index--) {
+                LoadItem loadItem = mLoads.valueAt(index);
+                if (!loadItem.isActive && !loadItem.hasWaiter() && cancelFilter.cancel(loadItem.blockIndex, loadItem.priority)) {
+                    mLoads.removeAt(index);
+                    loadItem.removed = true;
+                    // Take back the permit released for it, if the runner hasn't already woken
+                    // with it, in which case it'll just find one less item queued.
+                    mLoadRunner.acquireSemaphore();
+                    cancelled[cancelCount++] = loadItem.blockIndex;
                 }
             }
-            return false;
         }
+        return Arrays.copyOf(cancelled, cancelCount);
     }
 
-    private void notifyResult(int blockIndex, byte[] buffer, IOException exception) {
-        synchronized(mLoadQueue) {
-            boolean isFirst = true;
-            Iterator<LoadItem> iterator = mLoadQueue.iterator();
-            while (iterator.hasNext()) {
-                LoadItem loadItem = iterator.next();
-                if (loadItem.blockIndex == blockIndex) {
-                    loadItem.result = buffer;
-                    loadItem.exception = exception;
-                    if (loadItem.semaphore != null) {
-                        loadItem.semaphore.release();
-                        if (buffer == null && exception == null) {
-                            BmdsLog.e(TAG, "Priority load with no buffer or exception returned");
-                        }
-                    }
-                    iterator.remove();
-                    if (isFirst) {
-                        isFirst = false;
-                    } else {
-                        // Should always have an available permit as release is called for every item
-                        // added to mLoadQueue
-                        if (!mLoadRunner.acquireSemaphore()) {
-                            BmdsLog.e(TAG, "No outstanding permit for mLoadSemaphore");
-                        }
-                    }
+    // The blocks of running loads the filter would cancel and nobody is waiting for.
+    int[] cancellableActiveLoads(CancelFilter cancelFilter) {
+        int[] cancellable;
+        int cancellableCount = 0;
+        synchronized(mLoads) {
+            cancellable = new int[mLoads.size()];
+            for (int index = 0; index < mLoads.size(); index++) {
+                LoadItem activeItem = mLoads.valueAt(index);
+                if (activeItem.isActive && !activeItem.hasWaiter() &&
+                        cancelFilter.cancel(activeItem.blockIndex, activeItem.priority)) {
+                    cancellable[cancellableCount++] = activeItem.blockIndex;
                 }
             }
         }
+        return Arrays.copyOf(cancellable, cancellableCount);
     }
 
-    LoadItem findLoadItem() {
-        LoadItem toLoad = null;
-        for (int qIndex = 0; qIndex < mLoadQueue.size(); qIndex++) {
-            LoadItem qItem = mLoadQueue.get(qIndex);
-            // Prioritise the first blocking LoadItem
-            if (qItem.semaphore != null) {
-                toLoad = qItem;
-                break;
-            }
-            if (toLoad == null) {
-                toLoad = qItem;
-            }
+    boolean hasRequestForBlock(int blockIndex) {
+        synchronized(mLoads) {
+            return mLoads.get(blockIndex) != null;
+        }
+    }
+
+    // Not with mLoads locked, listeners go on to lock the MediaCache.
+    private static void notifyListeners(List<LoadListener> listeners, CacheBlock buffer, IOException exception) {
+        for (LoadListener listener : listeners) {
+            listener.loadComplete(buffer, exception);
         }
-        return toLoad;
     }
 
     class LoadItem {
         int blockIndex;
-        byte[] result;
+        CacheBlock result;
         IOException exception;
-        Semaphore semaphore;
+        // Created once a request blocks on the load, and counted down when it completes.
+        CountDownLatch done;
+        List<LoadListener> listeners;
+        // Only changed by the LoadRunner with its schedule lock locked, while it's not queued.
+        int priority;
+        long deadline;
+        // Order of scheduling, to keep loads with the same deadline first come first served.
+        long sequence;
         boolean isActive;
+        // Set once off mLoads, the LoadRunner's schedule drops it when it gets to it.
+        volatile boolean removed;
         Semaphore closeSemaphore;
 
-        LoadItem(int blockIndex, boolean blocking) {
+        LoadItem(int blockIndex, int priority, long deadline) {
             this.blockIndex = blockIndex;
-            if (blocking) {
-                this.semaphore = new Semaphore(0);
-            }
+            this.priority = priority;
+            this.deadline = deadline;
         }
 
         void read() {
+            CacheBlock buffer = null;
+            IOException loadException = null;
+            boolean aborted = false;
             try {
                 BmdsLog.d(TAG, "Running load IN", blockIndex);
-                byte[] buffer = mMediaCache.readIntoCache(blockIndex);
-                notifyResult(blockIndex, buffer, null);
+                buffer = mMediaCache.readIntoCache(blockIndex);
                 BmdsLog.d(TAG, "Running load OUT", blockIndex);
             } catch (EOFException e) {
+                // Past the end of the source, same as a block past its known length.
                 BmdsLog.e(TAG, "EOF in wait load", blockIndex);
+            } catch (BufferedSourceBase.LoadAbortedException e) {
+                BmdsLog.d(TAG, "Load aborted", blockIndex);
+                aborted = true;
             } catch (IOException e) {
                 BmdsLog.e(TAG, "Exception in wait load", blockIndex);
                 e.printStackTrace();
-                notifyResult(blockIndex, null, e);
+                loadException = e;
             }
-            synchronized(mLoadQueue) {
-                mLoadQueue.remove(this);
-                if (closeSemaphore != null) {
-                    closeSemaphore.release();
+            boolean loadAgain;
+            synchronized(mLoads) {
+                isActive = false;
+                // Someone may have started waiting for it after the abort was requested.
+                loadAgain = aborted && hasWaiter() && closeSemaphore == null;
+                if (!loadAgain) {
+                    mLoads.remove(blockIndex);
+                    removed = true;
+                    result = buffer;
+                    exception = loadException;
+                    if (closeSemaphore != null) {
+                        closeSemaphore.release();
+                    }
                 }
             }
+            if (loadAgain) {
+                // Anyone waiting now is blocked on it, so it goes ahead of the cache ahead it was.
+                mLoadRunner.schedule(this, PriorityBlocking, System.nanoTime());
+            } else {
+                notifyWaiters();
+            }
         }
 
-        byte[] waitForBuffer() throws IOException {
+        // Called once it's off mLoads, so no more requests can join it.
+        private void notifyWaiters() {
+            if (done != null) {
+                done.countDown();
+            }
+            if (listeners != null) {
+                notifyListeners(listeners, result, exception);
+            }
+        }
+
+        CacheBlock waitForBuffer() throws IOException {
             try {
-                semaphore.acquire();
+                done.await();
                 if (exception != null) {
                     throw exception;
                 }
@@ -173,8 +306,28 @@ class LoadRunnerClient {
             return null;
         }
 
-        void setActive() {
-            isActive = true;
+        // Claims the load for a load thread, unless it's been cancelled.
+        boolean activate() {
+            synchronized(mLoads) {
+                if (removed) {
+                    return false;
+                }
+                isActive = true;
+                return true;
+            }
+        }
+
+        // Blocked in waitForBuffer() or with a listener to call.
+        boolean hasWaiter() {
+            return done != null || listeners != null;
+        }
+
+        boolean isRemoved() {
+            return removed;
+        }
+
+        LoadRunnerClient client() {
+            return LoadRunnerClient.this;
         }
     }
 }
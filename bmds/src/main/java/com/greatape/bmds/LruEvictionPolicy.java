@@ -0,0 +1,50 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+/**
+ * Least recently used, O(1) for every operation.
+ *
+ * @author Steve Townsend
+ */
+class LruEvictionPolicy implements EvictionPolicy {
+    private final BlockList mBlocks;
+
+    LruEvictionPolicy(int capacity) {
+        mBlocks = new BlockList(capacity + 1);
+    }
+
+    @Override
+    public void blockLoaded(int blockIndex) {
+        if (!mBlocks.moveToFront(blockIndex)) {
+            mBlocks.addFirst(blockIndex);
+        }
+    }
+
+    @Override
+    public void blockUsed(int blockIndex) {
+        mBlocks.moveToFront(blockIndex);
+    }
+
+    @Override
+    public void blockRemoved(int blockIndex) {
+        mBlocks.remove(blockIndex);
+    }
+
+    @Override
+    public int selectBlockToPurge(BlockTable blockTable, BlockFilter filter) {
+        return EvictionPolicy.lastPurgeable(mBlocks, filter);
+    }
+}
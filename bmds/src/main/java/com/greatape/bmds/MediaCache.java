@@ -16,12 +16,14 @@ package com.greatape.bmds;
 
 import android.os.Build;
 import android.support.annotation.RequiresApi;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.TreeMap;
-import java.util.zip.Adler32;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Steve Townsend
@@ -29,122 +31,1027 @@ import java.util.zip.Adler32;
 @RequiresApi(api = Build.VERSION_CODES.M)
 class MediaCache {
     private static final String TAG = "MediaCache";
-    private TreeMap<Integer, byte[]> mBufferStore = new TreeMap<>();
+    // For load deadlines before the playback rate is known, high so loads err on the early side.
+    private static final long UnknownBytesPerSecond = 1024 * 1024;
+    private static final long BookkeepingInterval = 100 * 1000000L;
+    // Sources' background work, warmup, container parsing and writing local copies of blocks,
+    // shared so sources don't each start threads. Never the load executor, the work waits on loads
+    // that may need its threads.
+    private static final AtomicInteger sBackgroundThreadCount = new AtomicInteger();
+    private static final ExecutorService sBackgroundExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "BmdsBackground-" + sBackgroundThreadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final BlockTable mBufferStore;
     private int mMaxBlockIndex;
-    private ArrayList<Integer> mBlockRepeatedCachedAhead;
+    private final BlockStateTable mBlockStates;
     private final LoadRunnerClient mLoadRunner;
     private final BufferedMediaDataSource mBufferedMediaDataSource;
     private int mBufferSize;
     private int mMaxUsedBuffers;
+    private int mMinReservedBuffers;
+    private volatile long mLastReadTime;
+    // When readAt() last locked to update the stats and cache ahead, reads from the same block skip
+    // that for up to BookkeepingInterval so sequential playback keeps them up to date.
+    private volatile long mLastBookkeepingTime;
+    private volatile int mLastReadBlock;
+    private int mLastInsertedBlock;
     private final ReadStats mReadStats;
-    private int mCacheAheadCount;
+    private final EvictionPolicy mEvictionPolicy;
+    private final EvictionPolicy.BlockFilter mPurgeFilter;
+    private int mLastUsedBlock;
+    private final BlockPool mBlockPool;
+    private final SpillFile mSpillFile;
+    private final PersistentCacheEntry mPersistentCache;
+    // Loaded blocks retained until they're written to the persistent cache, on the background pool
+    // so loads don't wait for the flash write. Guarded by itself, one task at a time writes them.
+    private final ArrayDeque<CacheBlock> mPendingWrites;
+    // Purged blocks retained until they're copied to the spill file, likewise guarded by
+    // mPendingWrites, so the copy isn't made with this locked.
+    private final ArrayDeque<CacheBlock> mPendingSpills;
+    private boolean mWritingPending;
+    private final ReadAheadWindow mReadAheadWindow;
+    private final ConsumptionRate mConsumptionRate;
+    private final long mCacheAheadMillis;
+    private final int mMinCacheAhead;
+    private final int mMaxCacheAhead;
+    private volatile long mBitrateHint;
+    private volatile ContainerIndex mContainerIndex;
+    private final boolean mContainerAwarePrefetch;
+    private volatile boolean mClosed;
+    // The blocks the container index predicts are needed after the last read, the first
+    // mUpcomingCount are valid.
+    private int[] mUpcomingBlocks;
+    private int mUpcomingCount;
+    private final int mWarmupHeadBlocks;
+    // The sources being loaded from by block, so a stale load can be aborted.
+    private final SparseArray<BufferedSourceBase> mLoadingSources;
+    private final int mWarmupTailBlocks;
+    // Pin counts for blocks pinned with pin(), so overlapping ranges can be unpinned separately.
+    private final SparseIntArray mPinCounts;
+    private final int mPinHeadBlocks;
+    private final int mPinTailBlocks;
+    private int mTailPinStart;
+    // Resident blocks that are pinned, these don't count towards mMaxUsedBuffers.
+    private int mPinnedResident;
 
     MediaCache(BufferedMediaDataSource bufferedMediaDataSource, BufferedMediaDataSource.BufferConfig bufferConfig) {
         mBufferSize = bufferConfig.bufferSize;
-        mCacheAheadCount = bufferConfig.cacheAheadCount;
         mBufferedMediaDataSource = bufferedMediaDataSource;
         mReadStats = new ReadStats();
-        mLoadRunner = LoadRunner.addNewClient(this, bufferedMediaDataSource.typeName());
+        mBlockPool = new BlockPool(mBufferSize, bufferConfig.offHeapBuffers);
+        mLoadRunner = LoadRunner.addNewClient(this, bufferedMediaDataSource.typeName(), bufferConfig.loadWeight,
+                bufferConfig.loadThreadTimeout);
         mMaxUsedBuffers = bufferConfig.maxUsedBuffers;
-        mBlockRepeatedCachedAhead = new ArrayList<>();
+        // Never let the cache ahead grow to where it pushes out the blocks being read.
+        mMinCacheAhead = bufferConfig.minCacheAheadCount;
+        mMaxCacheAhead = Math.max(mMinCacheAhead, Math.min(bufferConfig.maxCacheAheadCount, mMaxUsedBuffers - 2));
+        if (bufferConfig.adaptiveCacheAhead) {
+            mReadAheadWindow = new ReadAheadWindow(bufferConfig.cacheAheadCount, mMinCacheAhead, mMaxCacheAhead);
+        } else {
+            mReadAheadWindow = new ReadAheadWindow(bufferConfig.cacheAheadCount, bufferConfig.cacheAheadCount, bufferConfig.cacheAheadCount);
+        }
+        mCacheAheadMillis = bufferConfig.cacheAheadMillis;
+        mConsumptionRate = new ConsumptionRate(4L * mBufferSize);
+        mBufferStore = new BlockTable(mMaxUsedBuffers);
+        mMinReservedBuffers = bufferConfig.minReservedBuffers;
+        mLastInsertedBlock = -1;
+        mLastUsedBlock = -1;
+        mLastBookkeepingTime = System.nanoTime() - BookkeepingInterval;
+        mLoadingSources = new SparseArray<>();
+        mEvictionPolicy = EvictionPolicy.create(bufferConfig, mReadStats, this::cacheAheadCount);
+        // Never purge the block that was last inserted as the thread that loaded it won't have had
+        // a chance to read it yet.
+        mPurgeFilter = blockIndex -> blockIndex != mLastInsertedBlock && !isPinned(blockIndex);
+        mPinCounts = new SparseIntArray();
+        mPinHeadBlocks = bufferConfig.pinHeadBlocks;
+        mPinTailBlocks = bufferConfig.pinTailBlocks;
+        mTailPinStart = -1;
+        mBlockStates = new BlockStateTable(mMaxUsedBuffers);
         mMaxBlockIndex = -1;
+        if (bufferConfig.spillDirectory != null) {
+            mSpillFile = new SpillFile(bufferConfig.spillDirectory, mBufferSize, bufferConfig.spillBlockCount);
+        } else {
+            mSpillFile = null;
+        }
+        String cacheKey = bufferedMediaDataSource.cacheKey();
+        if (bufferConfig.persistentCacheDirectory != null && cacheKey != null) {
+            mPersistentCache = PersistentCache.get(bufferConfig.persistentCacheDirectory, bufferConfig.persistentCacheSize).open(cacheKey, mBufferSize);
+        } else {
+            mPersistentCache = null;
+        }
+        mPendingWrites = new ArrayDeque<>();
+        mPendingSpills = new ArrayDeque<>();
+        mContainerAwarePrefetch = bufferConfig.containerAwarePrefetch;
+        mWarmupHeadBlocks = bufferConfig.warmupHeadBlocks;
+        mWarmupTailBlocks = bufferConfig.warmupTailBlocks;
+        CacheBudget.register(this);
     }
 
-    void close() {
-        mLoadRunner.close();
+    // Called once the BufferedMediaDataSource is fully constructed, as these read from it.
+    void startBackgroundWork() {
+        if (mWarmupHeadBlocks > 0 || mWarmupTailBlocks > 0) {
+            startWarmup();
+        }
+        if (mContainerAwarePrefetch) {
+            startContainerIndex();
+        }
     }
 
-    private byte[] getBuffer(int blockIndex) throws IOException {
-        byte[] cacheBuffer;
-        LoadRunnerClient.LoadItem loadItem = null;
+    // Queue the blocks MediaPlayer reads while preparing ahead of anything else, so they're
+    // loading while it's still setting up. The tail needs the source length, which can be a slow
+    // call of its own, so that's fetched on another thread at the same time.
+    private void startWarmup() {
         synchronized (this) {
-            cacheBuffer = mBufferStore.get(blockIndex);
-            if (cacheBuffer == null) {
-                BmdsLog.d(TAG, "Wait IN", blockIndex);
-                loadItem = mLoadRunner.requestLoad(blockIndex, true);
-//            } else { // Too verbose for normal usage.
-//                BmdsLog.d(TAG, "Using Cached Buffer", blockIndex);
+            for (int blockIndex = 0; blockIndex < mWarmupHeadBlocks; blockIndex++) {
+                requestWarmup(blockIndex);
+            }
+        }
+        sBackgroundExecutor.execute(() -> {
+            try {
+                long length = mBufferedMediaDataSource.getSize();
+                if (length <= 0 || mWarmupTailBlocks <= 0) {
+                    return;
+                }
+                int lastBlock = blockIndex(length - 1);
+                synchronized (this) {
+                    for (int blockIndex = Math.max(mWarmupHeadBlocks, lastBlock - mWarmupTailBlocks + 1); blockIndex <= lastBlock && !mClosed; blockIndex++) {
+                        requestWarmup(blockIndex);
+                    }
+                }
+            } catch (IOException e) {
+                BmdsLog.w(TAG, "Warmup unable to get size: " + e);
+            }
+        });
+    }
+
+    // Must be called with this locked.
+    private void requestWarmup(int blockIndex) {
+        if (needsLoad(blockIndex)) {
+            requestLoadLocked(blockIndex, false, LoadRunnerClient.PriorityWarmup);
+        }
+    }
+
+    // Must be called with this locked.
+    private boolean needsLoad(int blockIndex) {
+        int state = mBlockStates.state(blockIndex);
+        return state != BlockStateTable.Resident && state != BlockStateTable.Queued && state != BlockStateTable.Loading;
+    }
+
+    // Must be called with this locked.
+    private LoadRunnerClient.LoadItem requestLoadLocked(int blockIndex, boolean blocking, int priority) {
+        return requestLoadLocked(blockIndex, blocking, priority, null);
+    }
+
+    // Must be called with this locked.
+    private LoadRunnerClient.LoadItem requestLoadLocked(int blockIndex, boolean blocking, int priority, LoadRunnerClient.LoadListener listener) {
+        if (mBlockStates.state(blockIndex) != BlockStateTable.Loading) {
+            mBlockStates.setState(blockIndex, BlockStateTable.Queued);
+        }
+        return mLoadRunner.requestLoad(blockIndex, blocking, priority, loadDeadline(blockIndex, priority), listener);
+    }
+
+    // Must be called with this locked. When playback is expected to need the block, for ordering
+    // loads across all the sources sharing a LoadRunner. Warmup is needed now to prepare the player,
+    // cache ahead when playback reaches it and low priority loads not until after the whole cache.
+    private long loadDeadline(int blockIndex, int priority) {
+        long now = System.nanoTime();
+        if (priority >= LoadRunnerClient.PriorityWarmup) {
+            return now;
+        }
+        int distance = blockIndex - mLastReadBlock;
+        if (distance < 0) {
+            // Behind the read position, only needed after a seek back.
+            distance = mMaxUsedBuffers;
+        }
+        if (priority == LoadRunnerClient.PriorityLow) {
+            distance += mMaxUsedBuffers;
+        }
+        long bytesPerSecond = mBitrateHint > 0 ? mBitrateHint / 8 : mConsumptionRate.bytesPerSecond();
+        if (bytesPerSecond <= 0) {
+            bytesPerSecond = UnknownBytesPerSecond;
+        }
+        return now + distance * (mBufferSize * 1000000000L / bytesPerSecond);
+    }
+
+    // Must be called with this locked, for loads dropped from the queue.
+    private void loadsCancelled(int[] blocks) {
+        for (int blockIndex : blocks) {
+            if (mBlockStates.state(blockIndex) == BlockStateTable.Queued && !mLoadRunner.hasRequestForBlock(blockIndex)) {
+                mBlockStates.setState(blockIndex, BlockStateTable.Absent);
+            }
+        }
+    }
+
+    // Parse the container's index in the background, reading through the cache so MediaPlayer
+    // finds the blocks already loaded when it reads the same headers.
+    private void startContainerIndex() {
+        sBackgroundExecutor.execute(() -> {
+            try {
+                ContainerIndex containerIndex = ContainerIndex.parse(this::readWithoutStats, mBufferedMediaDataSource.getSize());
+                if (containerIndex != null && !mClosed) {
+                    BmdsLog.d(TAG, "Using container index for cache ahead");
+                    mContainerIndex = containerIndex;
+                    long pinLength = containerIndex.pinLength();
+                    // Don't let a huge index take over the cache.
+                    if (pinLength > 0 && pinLength <= (long) mBufferSize * mMaxUsedBuffers / 2) {
+                        pin(containerIndex.pinPosition(), pinLength);
+                    }
+                }
+            } catch (IOException e) {
+                if (!mClosed) {
+                    BmdsLog.w(TAG, "Unable to index container: " + e);
+                }
             }
+        });
+    }
+
+    void close() {
+        synchronized (this) {
+            mClosed = true;
+        }
+        mLoadRunner.close();
+        CacheBudget.unregister(this);
+        synchronized (this) {
+            CacheBudget.blocksRemoved((long) mBufferStore.size() * mBufferSize);
+            mBufferStore.clear();
+            mPinnedResident = 0;
         }
-        if (cacheBuffer == null) {
-            cacheBuffer = loadItem.waitForBuffer();
+        mBlockPool.clear();
+        if (mSpillFile != null) {
+            mSpillFile.close();
+        }
+        if (mPersistentCache != null) {
+            mPersistentCache.close();
+        }
+    }
+
+    // Returns the block retained for reading, it must be passed to releaseBlock() when finished with.
+    private CacheBlock getBlock(int blockIndex) throws IOException {
+        while (true) {
+            LoadRunnerClient.LoadItem loadItem;
+            synchronized (this) {
+                CacheBlock cacheBlock = mBufferStore.get(blockIndex);
+                if (cacheBlock != null) {
+//                    BmdsLog.d(TAG, "Using Cached Buffer", blockIndex); // Too verbose for normal usage.
+                    retainForRead(cacheBlock);
+                    return cacheBlock;
+                }
+                if (!hasLocalCopy(blockIndex)) {
+                    BmdsLog.d(TAG, "Wait IN", blockIndex);
+                    loadItem = requestLoadLocked(blockIndex, true, LoadRunnerClient.PriorityBlocking);
+                } else {
+                    loadItem = null;
+                }
+            }
+            if (loadItem == null) {
+                // Read local copies directly on this thread, no need to wait behind queued loads.
+                CacheBlock cacheBlock = readLocalCopy(blockIndex);
+                if (cacheBlock != null) {
+                    synchronized (this) {
+                        cacheBlock = insertBlock(cacheBlock);
+                        retainForRead(cacheBlock);
+                    }
+                    CacheBudget.enforce();
+                    return cacheBlock;
+                }
+                continue;
+            }
+            if (loadItem.waitForBuffer() == null) {
+                return null;
+            }
             BmdsLog.d(TAG, "Wait OUT", blockIndex);
+            // Loop round to retain the block, it may have already been purged again by the time we get here.
+        }
+    }
+
+    // Must be called with this locked.
+    private void retainForRead(CacheBlock cacheBlock) {
+        cacheBlock.retain();
+        blockUsed(cacheBlock.blockIndex);
+    }
+
+    // Must be called with this locked, and the block resident.
+    private void blockUsed(int blockIndex) {
+        if (blockIndex != mLastUsedBlock) {
+            mLastUsedBlock = blockIndex;
+            mEvictionPolicy.blockUsed(blockIndex);
+        }
+    }
+
+    // Returns the block retained for reading without taking the lock, null if it isn't resident.
+    private CacheBlock retainResident(int blockIndex) {
+        CacheBlock cacheBlock = mBufferStore.findUnlocked(blockIndex);
+        if (cacheBlock == null) {
+            return null;
+        }
+        cacheBlock.retain();
+        if (!mBufferStore.isCurrent(cacheBlock, blockIndex)) {
+            // Evicted before we retained it.
+            releaseBlock(cacheBlock);
+            return null;
+        }
+        return cacheBlock;
+    }
+
+    private void releaseBlock(CacheBlock cacheBlock) {
+        if (cacheBlock.release()) {
+            mBlockPool.recycle(cacheBlock);
         }
-        return cacheBuffer;
     }
 
     int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
         int blockIndex = blockIndex(position);
-        mReadStats.blockUsed(blockIndex);
-        int blockRepeatIndex = mBlockRepeatedCachedAhead.indexOf(blockIndex);
-        if (blockRepeatIndex >= 0) {
-            mBlockRepeatedCachedAhead.remove(blockRepeatIndex);
-        }
-        byte[] cacheBuffer = getBuffer(blockIndex);
-        // Cache ahead next buffer.
-        checkForCacheAhead(blockIndex);
-        int cacheOffset = (int) (position % mBufferSize);
-        int availableCache = cacheBuffer.length - cacheOffset;
-        int copyLen = Math.min(availableCache, size);
-        System.arraycopy(cacheBuffer, cacheOffset, buffer, offset, copyLen);
-        if (cacheBuffer.length == mBufferSize && copyLen < size) {
-            copyLen += readAt(position + copyLen, buffer, offset + copyLen, size - copyLen);
+        mLastReadTime = System.currentTimeMillis();
+        long nanoTime = System.nanoTime();
+        // Resident blocks are found and copied from without locking, the loader may be holding
+        // the lock to insert a block.
+        CacheBlock cacheBlock = retainResident(blockIndex);
+        if (cacheBlock == null || blockIndex != mLastReadBlock || nanoTime - mLastBookkeepingTime >= BookkeepingInterval) {
+            // Reads from the block just read, which is most of them with MediaPlayer's small reads,
+            // skip the bookkeeping for a while. Others lock once for it if the block's resident.
+            mLastReadBlock = blockIndex;
+            boolean seek;
+            synchronized (this) {
+                mLastBookkeepingTime = nanoTime;
+                mReadStats.blockUsed(blockIndex);
+                seek = mReadAheadWindow.blockRead(blockIndex, isUpcoming(blockIndex));
+                if (seek) {
+                    cancelStaleLoads(position, blockIndex);
+                }
+                mConsumptionRate.bytesRead(position, size, nanoTime);
+                if (mBlockStates.isCachedAhead(blockIndex)) {
+                    mBlockStates.setCachedAhead(blockIndex, false);
+                    mReadAheadWindow.cachedAheadBlockUsed();
+                }
+                if (cacheBlock != null) {
+                    // Unless it's been evicted since we retained it.
+                    if (mBufferStore.get(blockIndex) == cacheBlock) {
+                        blockUsed(blockIndex);
+                    }
+                    requestCacheAheadLocked(position, blockIndex, seek);
+                }
+            }
+            if (cacheBlock == null) {
+                cacheBlock = getBlock(blockIndex);
+                if (cacheBlock == null) {
+                    return -1;
+                }
+                // Cache ahead next buffer.
+                checkForCacheAhead(position, blockIndex, seek);
+            }
+        }
+        int copyLen;
+        boolean fullBlock;
+        try {
+            int cacheOffset = (int) (position % mBufferSize);
+            int availableCache = cacheBlock.length - cacheOffset;
+            copyLen = Math.min(availableCache, size);
+            cacheBlock.copyTo(cacheOffset, buffer, offset, copyLen);
+            fullBlock = cacheBlock.length == mBufferSize;
+        } finally {
+            releaseBlock(cacheBlock);
+        }
+        if (fullBlock && copyLen < size) {
+            int nextLen = readAt(position + copyLen, buffer, offset + copyLen, size - copyLen);
+            if (nextLen > 0) {
+                copyLen += nextLen;
+            }
         }
         return copyLen;
     }
 
-    private void checkForCacheAhead(int blockIndex) {
-        synchronized (this) {
-            for (int ahead = 1; ahead <= mCacheAheadCount; ahead++) {
-                int cacheAheadIndex = blockIndex + ahead;
-                if (!mBufferStore.keySet().contains(cacheAheadIndex) &&
-                        !mLoadRunner.hasRequestForBlock(cacheAheadIndex) &&
-                        !mBlockRepeatedCachedAhead.contains(cacheAheadIndex)) {
-                    // We only want to cache ahead a block once if it doesn't get used after caching.
-                    mBlockRepeatedCachedAhead.add(cacheAheadIndex);
-                    mLoadRunner.requestLoad(cacheAheadIndex, false);
+    private synchronized void checkForCacheAhead(long position, int blockIndex, boolean seek) {
+        requestCacheAheadLocked(position, blockIndex, seek);
+    }
+
+    // Must be called with this locked.
+    private void requestCacheAheadLocked(long position, int blockIndex, boolean seek) {
+        int cacheAheadCount = cacheAheadCount();
+        if (updateUpcomingBlocks(position, cacheAheadCount, seek)) {
+            for (int index = 0; index < mUpcomingCount; index++) {
+                requestCacheAhead(mUpcomingBlocks[index]);
+            }
+            return;
+        }
+        for (int ahead = 1; ahead <= cacheAheadCount; ahead++) {
+            requestCacheAhead(blockIndex + ahead);
+        }
+    }
+
+    // Must be called with this locked. Returns false, with no upcoming blocks, if there's no
+    // container index or position isn't in the indexed media.
+    private boolean updateUpcomingBlocks(long position, int cacheAheadCount, boolean seek) {
+        mUpcomingCount = 0;
+        ContainerIndex containerIndex = mContainerIndex;
+        if (containerIndex == null || cacheAheadCount <= 0) {
+            return false;
+        }
+        int upcomingLimit = containerIndex.upcomingLimit(cacheAheadCount, mMaxCacheAhead, seek);
+        // Only grown, the limit changes with every seek. Blocks come in playback order, so any past
+        // the limit are just dropped.
+        if (mUpcomingBlocks == null || mUpcomingBlocks.length < upcomingLimit) {
+            mUpcomingBlocks = new int[upcomingLimit];
+        }
+        int upcomingCount = containerIndex.upcomingBlocks(position, mBufferSize, mUpcomingBlocks);
+        if (upcomingCount < 0) {
+            return false;
+        }
+        mUpcomingCount = Math.min(upcomingCount, upcomingLimit);
+        return true;
+    }
+
+    // Must be called with this locked.
+    private boolean isUpcoming(int blockIndex) {
+        for (int index = 0; index < mUpcomingCount; index++) {
+            if (mUpcomingBlocks[index] == blockIndex) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Must be called with this locked.
+    private void requestCacheAhead(int cacheAheadIndex) {
+        // We only want to cache ahead a block once if it doesn't get used after caching.
+        if (needsLoad(cacheAheadIndex) && !mBlockStates.isCachedAhead(cacheAheadIndex)) {
+            mBlockStates.setCachedAhead(cacheAheadIndex, true);
+            requestLoadLocked(cacheAheadIndex, false, LoadRunnerClient.PriorityCacheAhead);
+        }
+    }
+
+    // Queue low priority loads for blocks the app expects to need soon, tracked like cache ahead.
+    synchronized void prefetch(long position, long length, int priority) {
+        if (length <= 0) {
+            return;
+        }
+        // More than the cache can hold would only purge the start of the range again.
+        int lastBlock = (int) Math.min(blockIndex(position + length - 1), (long) blockIndex(position) + mMaxUsedBuffers - 1);
+        for (int blockIndex = blockIndex(position); blockIndex <= lastBlock; blockIndex++) {
+            if (needsLoad(blockIndex)) {
+                mBlockStates.setCachedAhead(blockIndex, true);
+                requestLoadLocked(blockIndex, false, priority);
+            }
+        }
+    }
+
+    synchronized void cancelPrefetch(long position, long length) {
+        if (length <= 0) {
+            return;
+        }
+        final int firstBlock = blockIndex(position);
+        final int lastBlock = blockIndex(position + length - 1);
+        loadsCancelled(mLoadRunner.cancelLoads((blockIndex, priority) -> blockIndex >= firstBlock && blockIndex <= lastBlock));
+        mBlockStates.clearCachedAheadNotResident(firstBlock, lastBlock);
+    }
+
+    // Read for our own use, such as parsing the container, that shouldn't count as playback.
+    int readWithoutStats(long position, byte[] buffer, int offset, int size) throws IOException {
+        int totalLen = 0;
+        while (totalLen < size && !mClosed) {
+            CacheBlock cacheBlock = getBlock(blockIndex(position + totalLen));
+            if (cacheBlock == null) {
+                break;
+            }
+            int copyLen;
+            try {
+                int cacheOffset = (int) ((position + totalLen) % mBufferSize);
+                copyLen = Math.min(cacheBlock.length - cacheOffset, size - totalLen);
+                if (copyLen > 0) {
+                    cacheBlock.copyTo(cacheOffset, buffer, offset + totalLen, copyLen);
                 }
+            } finally {
+                releaseBlock(cacheBlock);
             }
+            if (copyLen <= 0) {
+                break;
+            }
+            totalLen += copyLen;
         }
+        return totalLen > 0 ? totalLen : -1;
     }
 
-    byte[] readIntoCache(int blockIndex) throws IOException {
-        if (mMaxBlockIndex >= 0 && blockIndex > mMaxBlockIndex) {
-            return null;
+    // Copies what it can from resident blocks on the calling thread, then carries on from the load
+    // thread as each missing block arrives. Like readWithoutStats() these reads don't drive the
+    // cache ahead, callers that know what they'll read next can prefetch() it.
+    void readAtAsync(long position, byte[] buffer, int offset, int size, BufferedMediaDataSource.ReadListener listener) {
+        new AsyncRead(position, buffer, offset, size, listener).readResident();
+    }
+
+    // Only one thread at a time owns an AsyncRead, the caller until a load is queued for it and then
+    // the load thread that calls loadComplete(), so whoever owns it is the one that completes it.
+    private class AsyncRead implements LoadRunnerClient.LoadListener {
+        // Results of retainOrRequestLoad().
+        private static final int BlockRetained = 0;
+        private static final int LoadQueued = 1;
+        private static final int ReadClosed = 2;
+
+        private final long mPosition;
+        private final byte[] mBuffer;
+        private final int mOffset;
+        private final int mSize;
+        private final BufferedMediaDataSource.ReadListener mListener;
+        private int mTotalLen;
+        // Set by retainOrRequestLoad() when it returns BlockRetained.
+        private CacheBlock mRetainedBlock;
+
+        AsyncRead(long position, byte[] buffer, int offset, int size, BufferedMediaDataSource.ReadListener listener) {
+            mPosition = position;
+            mBuffer = buffer;
+            mOffset = offset;
+            mSize = size;
+            mListener = listener;
         }
+
+        void readResident() {
+            while (mTotalLen < mSize && !mClosed) {
+                int blockIndex = blockIndex(mPosition + mTotalLen);
+                int blockResult = retainOrRequestLoad(blockIndex);
+                if (blockResult == LoadQueued) {
+                    // No longer ours, picked up again in loadComplete().
+                    return;
+                }
+                if (blockResult == ReadClosed) {
+                    break;
+                }
+                CacheBlock cacheBlock = mRetainedBlock;
+                mRetainedBlock = null;
+                int copyLen;
+                boolean fullBlock;
+                try {
+                    int cacheOffset = (int) ((mPosition + mTotalLen) % mBufferSize);
+                    copyLen = Math.min(cacheBlock.length - cacheOffset, mSize - mTotalLen);
+                    if (copyLen > 0) {
+                        cacheBlock.copyTo(cacheOffset, mBuffer, mOffset + mTotalLen, copyLen);
+                    }
+                    fullBlock = cacheBlock.length == mBufferSize;
+                } finally {
+                    releaseBlock(cacheBlock);
+                }
+                if (copyLen <= 0) {
+                    break;
+                }
+                mTotalLen += copyLen;
+                if (!fullBlock) {
+                    break;
+                }
+            }
+            complete();
+        }
+
+        // Decided with this locked. After LoadQueued the load thread may already be running
+        // loadComplete(), so the caller mustn't touch the read again.
+        private int retainOrRequestLoad(int blockIndex) {
+            CacheBlock cacheBlock = retainResident(blockIndex);
+            if (cacheBlock != null) {
+                mRetainedBlock = cacheBlock;
+                return BlockRetained;
+            }
+            synchronized (MediaCache.this) {
+                cacheBlock = mBufferStore.get(blockIndex);
+                if (cacheBlock != null) {
+                    retainForRead(cacheBlock);
+                    mRetainedBlock = cacheBlock;
+                    return BlockRetained;
+                }
+                if (mClosed) {
+                    // Checked with this locked so the load can't be queued after close() has
+                    // released everything waiting.
+                    return ReadClosed;
+                }
+                // Someone's waiting on it, so it's loaded along with blocking reads. Local copies
+                // are read on the load thread too rather than holding up the caller.
+                requestLoadLocked(blockIndex, false, LoadRunnerClient.PriorityBlocking, this);
+                return LoadQueued;
+            }
+        }
+
+        @Override
+        public void loadComplete(CacheBlock result, IOException exception) {
+            if (exception != null) {
+                mListener.onReadFailed(exception);
+            } else if (result == null) {
+                // End of the source, or closed.
+                complete();
+            } else {
+                // The block may already have been purged again, if so it's just requested again.
+                readResident();
+            }
+        }
+
+        private void complete() {
+            mListener.onReadComplete(mTotalLen > 0 ? mTotalLen : -1);
+        }
+    }
+
+    CacheBlock readIntoCache(int blockIndex) throws IOException {
+        synchronized (this) {
+            if (mMaxBlockIndex >= 0 && blockIndex > mMaxBlockIndex) {
+                mBlockStates.setState(blockIndex, BlockStateTable.Absent);
+                return null;
+            }
+            mBlockStates.setState(blockIndex, BlockStateTable.Loading);
+        }
+        try {
+            CacheBlock localBlock = readLocalCopy(blockIndex);
+            if (localBlock != null) {
+                synchronized (this) {
+                    localBlock = insertBlock(localBlock);
+                }
+                CacheBudget.enforce();
+                return localBlock;
+            }
+            return loadFromSource(blockIndex);
+        } catch (IOException e) {
+            synchronized (this) {
+                if (mBlockStates.state(blockIndex) == BlockStateTable.Loading) {
+                    mBlockStates.setState(blockIndex, BlockStateTable.Absent);
+                }
+            }
+            throw e;
+        }
+    }
+
+    private CacheBlock loadFromSource(int blockIndex) throws IOException {
+        // Reserved for this load until released, other load threads use a different stream.
         BufferedSourceBase bufferedStream = mBufferedMediaDataSource.streamForIndex(blockIndex);
-        long currentPos = bufferedStream.getPosition();
-        long targetPos = blockIndex  * mBufferSize;
-        if (targetPos != currentPos) {
-            bufferedStream.skip(targetPos);
-        }
-        byte[] cacheBuffer = new byte[mBufferSize];
-        int len = bufferedStream.read(cacheBuffer);
-        if (len < mBufferSize) {
-            cacheBuffer = Arrays.copyOf(cacheBuffer, len);
-            mMaxBlockIndex = blockIndex;
+        CacheBlock cacheBlock;
+        int len;
+        try {
+            long currentPos = bufferedStream.getPosition();
+            long targetPos = (long) blockIndex * mBufferSize;
+            if (targetPos != currentPos) {
+                bufferedStream.skip(targetPos);
+            }
+            cacheBlock = mBlockPool.acquire();
+            synchronized (this) {
+                bufferedStream.clearAbort();
+                mLoadingSources.put(blockIndex, bufferedStream);
+            }
+            try {
+                len = cacheBlock.load(bufferedStream);
+            } catch (IOException e) {
+                mBlockPool.recycle(cacheBlock);
+                throw e;
+            } finally {
+                synchronized (this) {
+                    mLoadingSources.remove(blockIndex);
+                }
+            }
+        } finally {
+            mBufferedMediaDataSource.releaseStream(bufferedStream);
         }
+        cacheBlock.blockIndex = blockIndex;
+        // A short final block keeps the full size buffer, only the first length bytes are valid.
+        cacheBlock.length = len;
+        CacheBlock loadedBlock = cacheBlock;
+        boolean persist;
         synchronized (this) {
-            mBufferStore.put(blockIndex, cacheBuffer);
+            cacheBlock = insertBlock(cacheBlock);
+            // Not if another load beat us to it, or it was purged straight away.
+            persist = mPersistentCache != null && cacheBlock == loadedBlock && mBufferStore.get(blockIndex) == cacheBlock;
+            if (persist) {
+                cacheBlock.retain();
+            }
         }
-        mReadStats.blockLoaded(blockIndex);
-        if (mBufferStore.size() > mMaxUsedBuffers) {
-            int toPurge = mReadStats.selectBlockToPurge(mBufferStore.keySet(), blockIndex);
-            mBufferStore.remove(toPurge);
-            BmdsLog.d(TAG, "Purged", toPurge);
+        if (persist) {
+            writeInBackground(cacheBlock);
         }
+        CacheBudget.enforce();
         bufferedStream.log("Loaded buffer: ", blockIndex);
-        return cacheBuffer;
+        return cacheBlock;
+    }
+
+    // Takes a retained block to write to the persistent cache, releasing it once written.
+    private void writeInBackground(CacheBlock cacheBlock) {
+        synchronized (mPendingWrites) {
+            mPendingWrites.addLast(cacheBlock);
+            startWritingPending();
+        }
+    }
+
+    // Takes a retained block to copy to the spill file, releasing it once copied.
+    private void spillInBackground(CacheBlock cacheBlock) {
+        synchronized (mPendingWrites) {
+            mPendingSpills.addLast(cacheBlock);
+            startWritingPending();
+        }
+    }
+
+    // Must be called with mPendingWrites locked.
+    private void startWritingPending() {
+        if (!mWritingPending) {
+            mWritingPending = true;
+            sBackgroundExecutor.execute(this::writePending);
+        }
+    }
+
+    private void writePending() {
+        while (true) {
+            CacheBlock cacheBlock;
+            boolean spill;
+            synchronized (mPendingWrites) {
+                // Spills first, they're quick and free up memory once released.
+                cacheBlock = mPendingSpills.pollFirst();
+                spill = cacheBlock != null;
+                if (!spill) {
+                    cacheBlock = mPendingWrites.pollFirst();
+                }
+                if (cacheBlock == null) {
+                    mWritingPending = false;
+                    return;
+                }
+            }
+            try {
+                if (mClosed) {
+                    continue;
+                }
+                if (spill) {
+                    mSpillFile.write(cacheBlock);
+                } else {
+                    mPersistentCache.write(cacheBlock, mBufferedMediaDataSource.getSize());
+                }
+            } catch (IOException e) {
+                BmdsLog.w(TAG, "Unable to persist block: " + e);
+            } finally {
+                releaseBlock(cacheBlock);
+            }
+        }
+    }
+
+    // Must be called with this locked. After a seek drop cache ahead for the old position, anything
+    // outside the new window, and abort any such loads running so a blocking read for the new
+    // position doesn't have to wait for them. Blocks the container index says the new position
+    // needs are kept wherever they are.
+    private void cancelStaleLoads(long position, final int blockIndex) {
+        final int cacheAheadCount = cacheAheadCount();
+        final int lastAhead = blockIndex + cacheAheadCount;
+        updateUpcomingBlocks(position, cacheAheadCount, true);
+        LoadRunnerClient.CancelFilter staleFilter = (loadBlock, priority) ->
+                priority == LoadRunnerClient.PriorityCacheAhead &&
+                (loadBlock < blockIndex || loadBlock > lastAhead) && !isPinned(loadBlock) &&
+                !isUpcoming(loadBlock);
+        int[] cancelled = mLoadRunner.cancelLoads(staleFilter);
+        loadsCancelled(cancelled);
+        for (int activeBlock : mLoadRunner.cancellableActiveLoads(staleFilter)) {
+            BufferedSourceBase loadingSource = mLoadingSources.get(activeBlock);
+            if (loadingSource != null) {
+                loadingSource.requestAbort();
+                BmdsLog.d(TAG, "Aborting stale load", activeBlock);
+            }
+        }
+        // Let them be cached ahead again if playback gets back there.
+        mBlockStates.clearCachedAheadNotResident(0, blockIndex - 1);
+        mBlockStates.clearCachedAheadNotResident(lastAhead + 1, Integer.MAX_VALUE);
+        BmdsLog.d(TAG, "Seek cancelled " + cancelled.length + " loads", blockIndex);
+    }
+
+    private boolean hasLocalCopy(int blockIndex) {
+        return (mPersistentCache != null && mPersistentCache.contains(blockIndex)) ||
+                (mSpillFile != null && mSpillFile.contains(blockIndex));
+    }
+
+    // Load a block from the persistent cache or spill file, null if neither has it.
+    private CacheBlock readLocalCopy(int blockIndex) {
+        if (!hasLocalCopy(blockIndex)) {
+            return null;
+        }
+        CacheBlock cacheBlock = mBlockPool.acquire();
+        if (mPersistentCache != null && mPersistentCache.read(blockIndex, cacheBlock)) {
+            BmdsLog.d(TAG, "Read from persistent cache", blockIndex);
+            return cacheBlock;
+        }
+        if (mSpillFile != null && mSpillFile.read(blockIndex, cacheBlock)) {
+            BmdsLog.d(TAG, "Read from spill file", blockIndex);
+            return cacheBlock;
+        }
+        mBlockPool.recycle(cacheBlock);
+        return null;
+    }
+
+    // Must be called with this locked, returns the already cached block if another load beat us to it.
+    private CacheBlock insertBlock(CacheBlock cacheBlock) {
+        int blockIndex = cacheBlock.blockIndex;
+        CacheBlock existing = mBufferStore.get(blockIndex);
+        if (existing != null) {
+            mBlockPool.recycle(cacheBlock);
+            return existing;
+        }
+        mBufferStore.put(cacheBlock);
+        mBlockStates.setState(blockIndex, BlockStateTable.Resident);
+        CacheBudget.blocksAdded(mBufferSize);
+        mReadStats.blockLoaded(blockIndex);
+        mEvictionPolicy.blockLoaded(blockIndex);
+        mLastInsertedBlock = blockIndex;
+        if (isPinned(blockIndex)) {
+            mPinnedResident++;
+        }
+        if (cacheBlock.length < mBufferSize) {
+            mMaxBlockIndex = blockIndex;
+        }
+        purgeToLimitLocked();
+        return cacheBlock;
+    }
+
+    // Must be called with this locked.
+    private void purgeToLimitLocked() {
+        int maxUsedBuffers = CacheBudget.underPressure() ? workingSetSize() : mMaxUsedBuffers;
+        while (unpinnedSize() > maxUsedBuffers && purgeBlockLocked()) {
+            // Normally just one, but more after the limit is dropped due to memory pressure.
+        }
+    }
+
+    private int unpinnedSize() {
+        return mBufferStore.size() - mPinnedResident;
+    }
+
+    private boolean isPinned(int blockIndex) {
+        return blockIndex < mPinHeadBlocks || (mTailPinStart >= 0 && blockIndex >= mTailPinStart) ||
+                mPinCounts.get(blockIndex) > 0;
+    }
+
+    // Keep the blocks covering the range in memory until unpinned, loading any we don't have yet.
+    synchronized void pin(long position, long length) {
+        if (length <= 0) {
+            return;
+        }
+        int lastBlock = blockIndex(position + length - 1);
+        for (int blockIndex = blockIndex(position); blockIndex <= lastBlock; blockIndex++) {
+            countPinnedResident(blockIndex, blockIndex, -1);
+            mPinCounts.put(blockIndex, mPinCounts.get(blockIndex) + 1);
+            countPinnedResident(blockIndex, blockIndex, 1);
+            if (needsLoad(blockIndex)) {
+                requestLoadLocked(blockIndex, false, LoadRunnerClient.PriorityCacheAhead);
+            }
+        }
+    }
+
+    synchronized void unpin(long position, long length) {
+        if (length <= 0) {
+            return;
+        }
+        int lastBlock = blockIndex(position + length - 1);
+        for (int blockIndex = blockIndex(position); blockIndex <= lastBlock; blockIndex++) {
+            countPinnedResident(blockIndex, blockIndex, -1);
+            int pinCount = mPinCounts.get(blockIndex);
+            if (pinCount > 1) {
+                mPinCounts.put(blockIndex, pinCount - 1);
+            } else {
+                mPinCounts.delete(blockIndex);
+            }
+            countPinnedResident(blockIndex, blockIndex, 1);
+        }
+        purgeToLimitLocked();
+    }
+
+    // Once the source length is known the tail blocks can be pinned, and loads past the end skipped
+    // without waiting for a load to find it.
+    synchronized void setSourceLength(long sourceLength) {
+        if (sourceLength > 0) {
+            mBlockStates.ensureCapacity(blockIndex(sourceLength - 1) + 1);
+            mMaxBlockIndex = blockIndex(sourceLength - 1);
+        }
+        if (mPinTailBlocks > 0 && sourceLength > 0) {
+            int tailPinStart = Math.max(0, blockIndex(sourceLength - 1) - mPinTailBlocks + 1);
+            // Only the blocks moving into or out of the tail change whether they're pinned.
+            int firstChanged = mTailPinStart >= 0 ? Math.min(mTailPinStart, tailPinStart) : tailPinStart;
+            int lastChanged = mTailPinStart >= 0 ? Math.max(mTailPinStart, tailPinStart) - 1 : mMaxBlockIndex;
+            countPinnedResident(firstChanged, lastChanged, -1);
+            mTailPinStart = tailPinStart;
+            countPinnedResident(firstChanged, lastChanged, 1);
+        }
+    }
+
+    // Must be called with this locked. Takes the range's pinned resident blocks out of
+    // mPinnedResident before changing which of them are pinned, and adds them back after.
+    private void countPinnedResident(int firstBlock, int lastBlock, int change) {
+        for (int blockIndex = firstBlock; blockIndex <= lastBlock; blockIndex++) {
+            if (isPinned(blockIndex) && mBufferStore.get(blockIndex) != null) {
+                mPinnedResident += change;
+            }
+        }
+    }
+
+    // Must be called with this locked.
+    private boolean purgeBlockLocked() {
+        int toPurge = mEvictionPolicy.selectBlockToPurge(mBufferStore, mPurgeFilter);
+        return toPurge >= 0 && removeBlockLocked(toPurge);
+    }
+
+    private boolean removeBlockLocked(int toPurge) {
+        CacheBlock purged = mBufferStore.remove(toPurge);
+        if (purged == null) {
+            return false;
+        }
+        mEvictionPolicy.blockRemoved(toPurge);
+        CacheBudget.blocksRemoved(mBufferSize);
+        if (isPinned(toPurge)) {
+            mPinnedResident--;
+        }
+        if (mBlockStates.isCachedAhead(toPurge)) {
+            // Cached ahead but purged before anyone read it.
+            mReadAheadWindow.cachedAheadBlockWasted();
+        }
+        // No point spilling blocks the persistent cache already has.
+        boolean spill = mSpillFile != null && (mPersistentCache == null || !mPersistentCache.contains(toPurge));
+        if (spill) {
+            // Retained for the copy, so it's recycled once that's done.
+            purged.retain();
+            mBlockStates.setState(toPurge, BlockStateTable.Spilled);
+        } else {
+            mBlockStates.setState(toPurge, BlockStateTable.Absent);
+        }
+        if (purged.evict()) {
+            mBlockPool.recycle(purged);
+        }
+        if (spill) {
+            spillInBackground(purged);
+        }
+        BmdsLog.d(TAG, "Purged", toPurge);
+        return true;
+    }
+
+    // Called by CacheBudget to give up a block to another cache.
+    synchronized boolean purgeBlock() {
+        return canReleaseBlock() && purgeBlockLocked();
+    }
+
+    synchronized boolean canReleaseBlock() {
+        return unpinnedSize() > Math.max(mMinReservedBuffers, 1);
+    }
+
+    // Called by CacheBudget under memory pressure, drop everything except the blocks around the
+    // current read position, pinned blocks and the first block which holds the container header.
+    synchronized void trimToWorkingSet() {
+        int readBlock = mLastReadBlock;
+        int cacheAheadCount = cacheAheadCount();
+        // Collect first, removing shuffles entries around the table.
+        int[] toTrim = new int[mBufferStore.size()];
+        int trimCount = 0;
+        for (int slot = 0; slot < mBufferStore.capacity(); slot++) {
+            CacheBlock cacheBlock = mBufferStore.slotAt(slot);
+            if (cacheBlock == null) {
+                continue;
+            }
+            int blockIndex = cacheBlock.blockIndex;
+            if (blockIndex != 0 && !isPinned(blockIndex) &&
+                    (blockIndex < readBlock - 1 || blockIndex > readBlock + cacheAheadCount)) {
+                toTrim[trimCount++] = blockIndex;
+            }
+        }
+        for (int index = 0; index < trimCount; index++) {
+            removeBlockLocked(toTrim[index]);
+        }
+        mBlockPool.clear();
+        BmdsLog.d(TAG, "Trimmed " + trimCount + " blocks, " + mBufferStore.size() + " remaining");
+    }
+
+    private int workingSetSize() {
+        // The header block, the previous block, the current block and those cached ahead.
+        return cacheAheadCount() + 3;
+    }
+
+    // Must be called with this locked. In time based mode enough blocks to cover cacheAheadMillis of
+    // playback, once we know the bitrate, otherwise the read ahead window.
+    private int cacheAheadCount() {
+        if (mCacheAheadMillis > 0) {
+            long bytesPerSecond = mBitrateHint > 0 ? mBitrateHint / 8 : mConsumptionRate.bytesPerSecond();
+            if (bytesPerSecond > 0) {
+                long aheadBytes = bytesPerSecond * mCacheAheadMillis / 1000;
+                long aheadBlocks = (aheadBytes + mBufferSize - 1) / mBufferSize;
+                return (int) Math.max(mMinCacheAhead, Math.min(mMaxCacheAhead, aheadBlocks));
+            }
+        }
+        return mReadAheadWindow.size();
+    }
+
+    // 0 to go back to estimating the bitrate from how fast the source is read.
+    void setBitrateHint(long bitsPerSecond) {
+        mBitrateHint = bitsPerSecond;
+    }
+
+    long lastReadTime() {
+        return mLastReadTime;
     }
 
     int blockIndex(long position) {
         return (int) (position / mBufferSize);
     }
 
+    // Source length recorded in the persistent cache, -1 if not available.
+    long cachedSourceLength() {
+        return mPersistentCache != null ? mPersistentCache.sourceLength() : -1;
+    }
+
     ReadStats getReadStats() {
         return mReadStats;
     }
 
+    int getAllocatedBlocks() {
+        return mBlockPool.allocatedBlocks();
+    }
+
     int getBufferSize() {
         return mBufferSize;
     }
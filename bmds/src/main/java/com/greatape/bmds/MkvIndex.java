@@ -0,0 +1,354 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * ContainerIndex for Matroska/WebM files, built from the Cues element found through the SeekHead.
+ * Cue points are kept as a sorted array of cluster positions, so a read that lands in a cluster,
+ * straight after a seek, requests that cluster and the following ones in one batch, sized from the
+ * cluster boundaries up to the largest cache ahead allowed. The Cues are reread by MediaPlayer on
+ * every seek, so are pinned.
+ *
+ * @author Steve Townsend
+ */
+class MkvIndex implements ContainerIndex {
+    private static final String TAG = "MkvIndex";
+    private static final int MaxSeekHeadSize = 64 * 1024;
+    private static final int MaxCuesSize = 16 * 1024 * 1024;
+    // Top level elements to look through for the SeekHead or Cues before giving up.
+    private static final int MaxTopLevelElements = 16;
+    // Clusters after the one being read to cache ahead after a seek, as far as the cache ahead allows.
+    private static final int ClustersAhead = 2;
+
+    private static final int EbmlId = 0x1A45DFA3;
+    private static final int SegmentId = 0x18538067;
+    private static final int SeekHeadId = 0x114D9B74;
+    private static final int SeekId = 0x4DBB;
+    private static final int SeekIdId = 0x53AB;
+    private static final int SeekPositionId = 0x53AC;
+    private static final int CuesId = 0x1C53BB6B;
+    private static final int CuePointId = 0xBB;
+    private static final int CueTrackPositionsId = 0xB7;
+    private static final int CueClusterPositionId = 0xF1;
+    private static final int ClusterId = 0x1F43B675;
+    private static final long UnknownSize = -1;
+
+    private final long[] mClusterPositions;
+    private final long mCuesPosition;
+    private final long mCuesLength;
+    private final long mLength;
+
+    private MkvIndex(long[] clusterPositions, long cuesPosition, long cuesLength, long length) {
+        mClusterPositions = clusterPositions;
+        mCuesPosition = cuesPosition;
+        mCuesLength = cuesLength;
+        mLength = length;
+    }
+
+    @Override
+    public int upcomingBlocks(long position, int bufferSize, int[] blocks) {
+        if (position >= mCuesPosition && position < mCuesPosition + mCuesLength) {
+            return -1;
+        }
+        int cluster = Arrays.binarySearch(mClusterPositions, position);
+        if (cluster < 0) {
+            cluster = -cluster - 2;
+            if (cluster < 0) {
+                return -1;
+            }
+        }
+        int endCluster = cluster + 1 + ClustersAhead;
+        long end;
+        if (endCluster < mClusterPositions.length) {
+            end = mClusterPositions[endCluster];
+        } else if (mCuesPosition > position) {
+            // Cues at the end of the file follow the last cluster.
+            end = mCuesPosition;
+        } else {
+            end = mLength;
+        }
+        int count = 0;
+        int lastBlock = (int) ((end - 1) / bufferSize);
+        for (int blockIndex = (int) (position / bufferSize); blockIndex <= lastBlock && count < blocks.length; blockIndex++) {
+            blocks[count++] = blockIndex;
+        }
+        return count;
+    }
+
+    @Override
+    public int upcomingLimit(int cacheAheadCount, int maxCacheAhead, boolean seek) {
+        // The whole batch only straight after a seek, from then on the usual cache ahead.
+        return seek ? maxCacheAhead : Math.min(cacheAheadCount, maxCacheAhead);
+    }
+
+    @Override
+    public long pinPosition() {
+        return mCuesPosition;
+    }
+
+    @Override
+    public long pinLength() {
+        return mCuesLength;
+    }
+
+    int cuePointCount() {
+        return mClusterPositions.length;
+    }
+
+    static MkvIndex parse(Source source, long length) throws IOException {
+        Element element = readElement(source, 0, length);
+        if (element == null || element.id != EbmlId || element.size == UnknownSize) {
+            return null;
+        }
+        Element segment = readElement(source, element.dataPosition + element.size, length);
+        if (segment == null || segment.id != SegmentId) {
+            return null;
+        }
+        long segmentData = segment.dataPosition;
+        long segmentEnd = segment.size == UnknownSize ? length : Math.min(length, segmentData + segment.size);
+        long cuesPosition = -1;
+        long position = segmentData;
+        for (int count = 0; count < MaxTopLevelElements && cuesPosition < 0 && position < segmentEnd; count++) {
+            element = readElement(source, position, segmentEnd);
+            if (element == null || element.size == UnknownSize || element.id == ClusterId) {
+                break;
+            }
+            if (element.id == CuesId) {
+                cuesPosition = position;
+            } else if (element.id == SeekHeadId && element.size <= MaxSeekHeadSize) {
+                byte[] seekHead = new byte[(int) element.size];
+                ContainerIndex.readFully(source, element.dataPosition, seekHead, seekHead.length);
+                long cuesOffset = findCuesOffset(new EbmlReader(seekHead));
+                if (cuesOffset >= 0) {
+                    cuesPosition = segmentData + cuesOffset;
+                }
+            }
+            position = element.dataPosition + element.size;
+        }
+        if (cuesPosition < 0) {
+            BmdsLog.d(TAG, "No Cues found");
+            return null;
+        }
+        Element cues = readElement(source, cuesPosition, segmentEnd);
+        if (cues == null || cues.id != CuesId || cues.size == UnknownSize || cues.size > MaxCuesSize) {
+            return null;
+        }
+        byte[] cuesData = new byte[(int) cues.size];
+        ContainerIndex.readFully(source, cues.dataPosition, cuesData, cuesData.length);
+        long[] clusterPositions = readClusterPositions(new EbmlReader(cuesData), segmentData);
+        if (clusterPositions.length == 0) {
+            return null;
+        }
+        BmdsLog.d(TAG, "Indexed " + clusterPositions.length + " cue points");
+        return new MkvIndex(clusterPositions, cuesPosition, cues.dataPosition + cues.size - cuesPosition, length);
+    }
+
+    // Relative to the segment data, -1 if the SeekHead has no entry for the Cues.
+    private static long findCuesOffset(EbmlReader seekHead) {
+        while (seekHead.hasElement()) {
+            int id = seekHead.readId();
+            long size = seekHead.readSize();
+            if (id != SeekId) {
+                seekHead.skip(size);
+                continue;
+            }
+            long end = seekHead.position() + size;
+            long seekId = -1;
+            long seekPosition = -1;
+            while (seekHead.position() < end && seekHead.hasElement()) {
+                int childId = seekHead.readId();
+                long childSize = seekHead.readSize();
+                if (childId == SeekIdId || childId == SeekPositionId) {
+                    long value = seekHead.readUnsigned((int) childSize);
+                    if (childId == SeekIdId) {
+                        seekId = value;
+                    } else {
+                        seekPosition = value;
+                    }
+                } else {
+                    seekHead.skip(childSize);
+                }
+            }
+            if (seekId == CuesId) {
+                return seekPosition;
+            }
+        }
+        return -1;
+    }
+
+    // Absolute positions of the clusters the cue points refer to, sorted and without duplicates.
+    private static long[] readClusterPositions(EbmlReader cues, long segmentData) {
+        long[] positions = new long[256];
+        int count = 0;
+        while (cues.hasElement()) {
+            int id = cues.readId();
+            long size = cues.readSize();
+            if (id != CuePointId) {
+                cues.skip(size);
+                continue;
+            }
+            long cuePointEnd = cues.position() + size;
+            long clusterPosition = -1;
+            while (cues.position() < cuePointEnd && cues.hasElement()) {
+                int childId = cues.readId();
+                long childSize = cues.readSize();
+                if (childId != CueTrackPositionsId || clusterPosition >= 0) {
+                    cues.skip(childSize);
+                    continue;
+                }
+                // Only the first track's position is needed, they all point at the same cluster.
+                long trackPositionsEnd = cues.position() + childSize;
+                while (cues.position() < trackPositionsEnd && cues.hasElement()) {
+                    int trackId = cues.readId();
+                    long trackSize = cues.readSize();
+                    if (trackId == CueClusterPositionId) {
+                        clusterPosition = segmentData + cues.readUnsigned((int) trackSize);
+                    } else {
+                        cues.skip(trackSize);
+                    }
+                }
+            }
+            if (clusterPosition >= 0) {
+                if (count == positions.length) {
+                    positions = Arrays.copyOf(positions, count * 2);
+                }
+                positions[count++] = clusterPosition;
+            }
+        }
+        positions = Arrays.copyOf(positions, count);
+        Arrays.sort(positions);
+        int unique = 0;
+        for (int index = 0; index < positions.length; index++) {
+            if (unique == 0 || positions[index] != positions[unique - 1]) {
+                positions[unique++] = positions[index];
+            }
+        }
+        return Arrays.copyOf(positions, unique);
+    }
+
+    // Null if there isn't a valid element header at position.
+    private static Element readElement(Source source, long position, long end) throws IOException {
+        // Up to 4 bytes of ID and 8 of size.
+        int headerLen = (int) Math.min(12, end - position);
+        if (headerLen < 2) {
+            return null;
+        }
+        byte[] header = new byte[headerLen];
+        ContainerIndex.readFully(source, position, header, headerLen);
+        EbmlReader reader = new EbmlReader(header);
+        if (!reader.hasElement()) {
+            return null;
+        }
+        Element element = new Element();
+        element.id = reader.readId();
+        element.size = reader.readSize();
+        if (!reader.isValid()) {
+            return null;
+        }
+        element.dataPosition = position + reader.position();
+        return element;
+    }
+
+    private static class Element {
+        int id;
+        long size;
+        long dataPosition;
+    }
+
+    // Reads EBML variable length IDs, sizes and integers from a buffer. Errors, including running
+    // off the end of the buffer, mark the reader invalid and end iteration rather than throwing.
+    private static class EbmlReader {
+        private final byte[] mData;
+        private int mPosition;
+        private boolean mValid;
+
+        EbmlReader(byte[] data) {
+            mData = data;
+            mValid = true;
+        }
+
+        boolean hasElement() {
+            return mValid && mPosition + 2 <= mData.length;
+        }
+
+        boolean isValid() {
+            return mValid;
+        }
+
+        int position() {
+            return mPosition;
+        }
+
+        // IDs keep their length marker bits, as they're written in the spec.
+        int readId() {
+            int length = vintLength();
+            if (length > 4) {
+                mValid = false;
+                return 0;
+            }
+            return (int) readUnsigned(length);
+        }
+
+        long readSize() {
+            int length = vintLength();
+            if (length > 8 || mPosition + length > mData.length) {
+                mValid = false;
+                return 0;
+            }
+            long value = mData[mPosition] & (0xff >> length);
+            boolean allOnes = value == (0xff >> length);
+            for (int index = 1; index < length; index++) {
+                int next = mData[mPosition + index] & 0xff;
+                allOnes &= next == 0xff;
+                value = (value << 8) | next;
+            }
+            mPosition += length;
+            return allOnes ? UnknownSize : value;
+        }
+
+        long readUnsigned(int length) {
+            if (length < 0 || length > 8 || mPosition + length > mData.length) {
+                mValid = false;
+                return 0;
+            }
+            long value = 0;
+            for (int index = 0; index < length; index++) {
+                value = (value << 8) | (mData[mPosition++] & 0xff);
+            }
+            return value;
+        }
+
+        void skip(long size) {
+            if (size < 0 || mPosition + size > mData.length) {
+                mValid = false;
+            } else {
+                mPosition += size;
+            }
+        }
+
+        // Number of leading zero bits plus one in the first byte, 9 if it's invalid.
+        private int vintLength() {
+            if (mPosition >= mData.length) {
+                mValid = false;
+                return 9;
+            }
+            int first = mData[mPosition] & 0xff;
+            return first == 0 ? 9 : Integer.numberOfLeadingZeros(first) - 23;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * ContainerIndex for MP4/MOV files, built from the chunk tables (stco/co64, stsc, stsz and stts) of
+ * every track in the moov box. Chunks of all tracks are merged into playback order, so badly
+ * interleaved files, where audio and video for the same time are far apart, prefetch both.
+ *
+ * @author Steve Townsend
+ */
+class Mp4Index implements ContainerIndex {
+    private static final String TAG = "Mp4Index";
+    // Refuse silly moov sizes rather than run out of memory on a corrupt file.
+    private static final int MaxMoovSize = 64 * 1024 * 1024;
+
+    private static final int Ftyp = boxType("ftyp");
+    private static final int Moov = boxType("moov");
+    private static final int Trak = boxType("trak");
+    private static final int Mdia = boxType("mdia");
+    private static final int Mdhd = boxType("mdhd");
+    private static final int Minf = boxType("minf");
+    private static final int Stbl = boxType("stbl");
+    private static final int Stco = boxType("stco");
+    private static final int Co64 = boxType("co64");
+    private static final int Stsc = boxType("stsc");
+    private static final int Stsz = boxType("stsz");
+    private static final int Stts = boxType("stts");
+    // Boxes allowed at the start of a file, older QuickTime files don't have an ftyp.
+    private static final int[] FirstBoxTypes = {Ftyp, Moov, boxType("mdat"), boxType("free"),
+            boxType("skip"), boxType("wide"), boxType("pnot")};
+
+    // Chunks of all tracks in playback order.
+    private final long[] mChunkOffsets;
+    private final int[] mChunkSizes;
+    // Chunk numbers sorted by file offset, for finding the chunk a read is in.
+    private final long[] mSortedOffsets;
+    private final int[] mSortedChunks;
+
+    private Mp4Index(long[] chunkOffsets, int[] chunkSizes) {
+        mChunkOffsets = chunkOffsets;
+        mChunkSizes = chunkSizes;
+        mSortedChunks = sortByOffset(chunkOffsets);
+        mSortedOffsets = new long[mSortedChunks.length];
+        for (int index = 0; index < mSortedChunks.length; index++) {
+            mSortedOffsets[index] = chunkOffsets[mSortedChunks[index]];
+        }
+    }
+
+    // Chunk numbers in offset order, by a merge sort of the int's rather than boxing them all to
+    // sort with a Comparator.
+    private static int[] sortByOffset(long[] offsets) {
+        int[] order = new int[offsets.length];
+        for (int chunk = 0; chunk < order.length; chunk++) {
+            order[chunk] = chunk;
+        }
+        int[] merged = new int[order.length];
+        for (int width = 1; width < order.length; width *= 2) {
+            for (int start = 0; start < order.length; start += 2 * width) {
+                int middle = Math.min(start + width, order.length);
+                int end = Math.min(start + 2 * width, order.length);
+                int left = start;
+                int right = middle;
+                for (int index = start; index < end; index++) {
+                    if (left < middle && (right >= end || offsets[order[left]] <= offsets[order[right]])) {
+                        merged[index] = order[left++];
+                    } else {
+                        merged[index] = order[right++];
+                    }
+                }
+            }
+            int[] swap = order;
+            order = merged;
+            merged = swap;
+        }
+        return order;
+    }
+
+    @Override
+    public int upcomingBlocks(long position, int bufferSize, int[] blocks) {
+        int sortedIndex = Arrays.binarySearch(mSortedOffsets, position);
+        if (sortedIndex < 0) {
+            sortedIndex = -sortedIndex - 2;
+            if (sortedIndex < 0) {
+                return -1;
+            }
+        }
+        int startChunk = mSortedChunks[sortedIndex];
+        if (position >= mChunkOffsets[startChunk] + mChunkSizes[startChunk]) {
+            return -1;
+        }
+        int count = 0;
+        for (int chunk = startChunk; chunk < mChunkOffsets.length && count < blocks.length; chunk++) {
+            if (mChunkSizes[chunk] == 0) {
+                continue;
+            }
+            long firstByte = chunk == startChunk ? position : mChunkOffsets[chunk];
+            int firstBlock = (int) (firstByte / bufferSize);
+            int lastBlock = (int) ((mChunkOffsets[chunk] + mChunkSizes[chunk] - 1) / bufferSize);
+            for (int blockIndex = firstBlock; blockIndex <= lastBlock && count < blocks.length; blockIndex++) {
+                count = ContainerIndex.addBlock(blocks, count, blockIndex);
+            }
+        }
+        return count;
+    }
+
+    int chunkCount() {
+        return mChunkOffsets.length;
+    }
+
+    static Mp4Index parse(Source source, long length) throws IOException {
+        byte[] header = new byte[16];
+        long position = 0;
+        while (position + 8 <= length) {
+            int headerLen = (int) Math.min(header.length, length - position);
+            ContainerIndex.readFully(source, position, header, headerLen);
+            ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+            long size = headerBuffer.getInt(0) & 0xffffffffL;
+            int type = headerBuffer.getInt(4);
+            int headerSize = 8;
+            if (size == 1) {
+                if (headerLen < 16) {
+                    return null;
+                }
+                size = headerBuffer.getLong(8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = length - position;
+            }
+            if ((position == 0 && !isFirstBoxType(type)) || size < headerSize) {
+                return null;
+            }
+            if (type == Moov) {
+                if (size - headerSize > MaxMoovSize) {
+                    BmdsLog.w(TAG, "moov too large to index: " + size);
+                    return null;
+                }
+                byte[] moov = new byte[(int) (size - headerSize)];
+                ContainerIndex.readFully(source, position + headerSize, moov, moov.length);
+                try {
+                    return fromMoov(ByteBuffer.wrap(moov));
+                } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+                    BmdsLog.w(TAG, "Invalid moov: " + e);
+                    return null;
+                }
+            }
+            position += size;
+        }
+        return null;
+    }
+
+    private static Mp4Index fromMoov(ByteBuffer moov) {
+        Track[] tracks = new Track[0];
+        ByteBuffer trak;
+        while ((trak = childBox(moov, Trak, tracks.length)) != null) {
+            tracks = Arrays.copyOf(tracks, tracks.length + 1);
+            tracks[tracks.length - 1] = parseTrack(trak);
+        }
+        int chunkCount = 0;
+        for (Track track : tracks) {
+            if (track != null) {
+                chunkCount += track.offsets.length;
+            }
+        }
+        if (chunkCount == 0) {
+            return null;
+        }
+        // Merge the tracks, each is already in time order.
+        long[] chunkOffsets = new long[chunkCount];
+        int[] chunkSizes = new int[chunkCount];
+        int[] nextChunk = new int[tracks.length];
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            int earliest = -1;
+            for (int trackIndex = 0; trackIndex < tracks.length; trackIndex++) {
+                Track track = tracks[trackIndex];
+                if (track != null && nextChunk[trackIndex] < track.offsets.length && (earliest < 0 ||
+                        track.times[nextChunk[trackIndex]] < tracks[earliest].times[nextChunk[earliest]])) {
+                    earliest = trackIndex;
+                }
+            }
+            Track track = tracks[earliest];
+            chunkOffsets[chunk] = track.offsets[nextChunk[earliest]];
+            chunkSizes[chunk] = track.sizes[nextChunk[earliest]];
+            nextChunk[earliest]++;
+        }
+        BmdsLog.d(TAG, "Indexed " + chunkCount + " chunks in " + tracks.length + " tracks");
+        return new Mp4Index(chunkOffsets, chunkSizes);
+    }
+
+    // Null if the track is missing any of the tables we need.
+    private static Track parseTrack(ByteBuffer trak) {
+        ByteBuffer mdia = childBox(trak, Mdia, 0);
+        ByteBuffer mdhd = mdia != null ? childBox(mdia, Mdhd, 0) : null;
+        ByteBuffer minf = mdia != null ? childBox(mdia, Minf, 0) : null;
+        ByteBuffer stbl = minf != null ? childBox(minf, Stbl, 0) : null;
+        if (mdhd == null || stbl == null) {
+            return null;
+        }
+        long timescale = (mdhd.get(0) == 1 ? mdhd.getInt(20) : mdhd.getInt(12)) & 0xffffffffL;
+        ByteBuffer stco = childBox(stbl, Stco, 0);
+        ByteBuffer co64 = childBox(stbl, Co64, 0);
+        ByteBuffer stsc = childBox(stbl, Stsc, 0);
+        ByteBuffer stsz = childBox(stbl, Stsz, 0);
+        ByteBuffer stts = childBox(stbl, Stts, 0);
+        if (timescale == 0 || (stco == null && co64 == null) || stsc == null || stsz == null || stts == null) {
+            return null;
+        }
+        long[] offsets;
+        if (co64 != null) {
+            offsets = new long[tableCount(co64, 8)];
+            for (int chunk = 0; chunk < offsets.length; chunk++) {
+                offsets[chunk] = co64.getLong(8 + chunk * 8);
+            }
+        } else {
+            offsets = new long[tableCount(stco, 4)];
+            for (int chunk = 0; chunk < offsets.length; chunk++) {
+                offsets[chunk] = stco.getInt(8 + chunk * 4) & 0xffffffffL;
+            }
+        }
+        int stscCount = tableCount(stsc, 12);
+        int fixedSampleSize = stsz.getInt(4);
+        int sampleCount = stsz.getInt(8);
+        if (sampleCount < 0 || (fixedSampleSize == 0 && stsz.limit() < 12 + (long) sampleCount * 4)) {
+            return null;
+        }
+        int sttsCount = tableCount(stts, 8);
+        Track track = new Track(offsets.length);
+        track.offsets = offsets;
+        int stscEntry = 0;
+        int sample = 0;
+        int sttsEntry = 0;
+        int sttsRemaining = sttsCount > 0 ? stts.getInt(8) : 0;
+        long decodeTime = 0;
+        for (int chunk = 0; chunk < offsets.length; chunk++) {
+            // stsc chunk numbers start at 1, each entry runs until the next one's first chunk.
+            while (stscEntry + 1 < stscCount && stsc.getInt(8 + (stscEntry + 1) * 12) - 1 <= chunk) {
+                stscEntry++;
+            }
+            int samplesInChunk = stscCount > 0 ? stsc.getInt(8 + stscEntry * 12 + 4) : 0;
+            samplesInChunk = Math.max(0, Math.min(samplesInChunk, sampleCount - sample));
+            long chunkSize = 0;
+            if (fixedSampleSize != 0) {
+                chunkSize = (long) fixedSampleSize * samplesInChunk;
+            } else {
+                for (int chunkSample = 0; chunkSample < samplesInChunk; chunkSample++) {
+                    chunkSize += stsz.getInt(12 + (sample + chunkSample) * 4) & 0xffffffffL;
+                }
+            }
+            track.sizes[chunk] = (int) Math.min(Integer.MAX_VALUE, chunkSize);
+            track.times[chunk] = decodeTime * 1000000 / timescale;
+            sample += samplesInChunk;
+            // Advance the decode time past this chunk's samples.
+            for (int remaining = samplesInChunk; remaining > 0 && sttsEntry < sttsCount; ) {
+                int step = Math.min(remaining, sttsRemaining);
+                decodeTime += (long) step * (stts.getInt(8 + sttsEntry * 8 + 4) & 0xffffffffL);
+                remaining -= step;
+                sttsRemaining -= step;
+                if (sttsRemaining <= 0 && ++sttsEntry < sttsCount) {
+                    sttsRemaining = stts.getInt(8 + sttsEntry * 8);
+                }
+            }
+        }
+        return track;
+    }
+
+    // Entry count of a full box table, checked against the box size.
+    private static int tableCount(ByteBuffer box, int entrySize) {
+        int count = box.getInt(4);
+        if (count < 0 || 8 + (long) count * entrySize > box.limit()) {
+            throw new IllegalArgumentException("Bad table size " + count);
+        }
+        return count;
+    }
+
+    // The body of the occurrence'th child box of type, or null.
+    private static ByteBuffer childBox(ByteBuffer parent, int type, int occurrence) {
+        int position = 0;
+        while (position + 8 <= parent.limit()) {
+            long size = parent.getInt(position) & 0xffffffffL;
+            int headerSize = 8;
+            if (size == 1) {
+                size = parent.getLong(position + 8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = parent.limit() - position;
+            }
+            if (size < headerSize || position + size > parent.limit()) {
+                return null;
+            }
+            if (parent.getInt(position + 4) == type && occurrence-- == 0) {
+                ByteBuffer child = parent.duplicate();
+                child.limit((int) (position + size));
+                child.position(position + headerSize);
+                return child.slice();
+            }
+            position += size;
+        }
+        return null;
+    }
+
+    private static boolean isFirstBoxType(int type) {
+        for (int firstType : FirstBoxTypes) {
+            if (type == firstType) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int boxType(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    private static class Track {
+        long[] offsets;
+        final int[] sizes;
+        final long[] times;
+
+        Track(int chunkCount) {
+            sizes = new int[chunkCount];
+            times = new long[chunkCount];
+        }
+    }
+}
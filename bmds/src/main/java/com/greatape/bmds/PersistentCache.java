@@ -0,0 +1,175 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent block cache shared across sessions, one instance per cache directory. Each source with
+ * a cacheKey() gets a PersistentCacheEntry holding a sparse data file and a compact index of which
+ * blocks are present. Total size is capped with whole entries discarded least recently used first.
+ *
+ * @author Steve Townsend
+ */
+class PersistentCache {
+    private static final String TAG = "PersistentCache";
+
+    private static final Map<String, PersistentCache> sInstances = new HashMap<>();
+
+    private final File mDirectory;
+    private long mMaxSize;
+    private long mTotalSize;
+    // Access ordered, so iteration starts at the least recently used entry.
+    private final LinkedHashMap<String, EntryInfo> mEntries;
+    private final Map<String, PersistentCacheEntry> mOpenEntries;
+
+    private static class EntryInfo {
+        long size;
+        int openCount;
+    }
+
+    static PersistentCache get(File directory, long maxSize) {
+        synchronized (sInstances) {
+            String path = directory.getAbsolutePath();
+            PersistentCache persistentCache = sInstances.get(path);
+            if (persistentCache == null) {
+                persistentCache = new PersistentCache(directory);
+                sInstances.put(path, persistentCache);
+            }
+            persistentCache.setMaxSize(maxSize);
+            return persistentCache;
+        }
+    }
+
+    private PersistentCache(File directory) {
+        mDirectory = directory;
+        mEntries = new LinkedHashMap<>(16, 0.75f, true);
+        mOpenEntries = new HashMap<>();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            BmdsLog.e(TAG, "Unable to create cache directory: " + directory);
+        }
+        scanEntries();
+    }
+
+    private void scanEntries() {
+        File[] indexFiles = mDirectory.listFiles((dir, name) -> name.endsWith(PersistentCacheEntry.IndexSuffix));
+        if (indexFiles == null) {
+            return;
+        }
+        List<File> sorted = new ArrayList<>();
+        for (File indexFile : indexFiles) {
+            sorted.add(indexFile);
+        }
+        Collections.sort(sorted, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File indexFile : sorted) {
+            String fileName = indexFile.getName();
+            String name = fileName.substring(0, fileName.length() - PersistentCacheEntry.IndexSuffix.length());
+            long size = PersistentCacheEntry.readCachedSize(indexFile);
+            if (size < 0) {
+                PersistentCacheEntry.delete(mDirectory, name);
+                continue;
+            }
+            EntryInfo entryInfo = new EntryInfo();
+            entryInfo.size = size;
+            mEntries.put(name, entryInfo);
+            mTotalSize += size;
+        }
+    }
+
+    private synchronized void setMaxSize(long maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    synchronized PersistentCacheEntry open(String cacheKey, int bufferSize) {
+        String name = PersistentCacheEntry.nameForKey(cacheKey);
+        EntryInfo entryInfo = mEntries.get(name);
+        if (entryInfo == null) {
+            entryInfo = new EntryInfo();
+            mEntries.put(name, entryInfo);
+        }
+        PersistentCacheEntry entry = mOpenEntries.get(name);
+        if (entry == null) {
+            entry = new PersistentCacheEntry(this, mDirectory, name, cacheKey, bufferSize);
+            // Opening may have discarded a stale index, so take the size from what was actually loaded.
+            mTotalSize += entry.cachedSize() - entryInfo.size;
+            entryInfo.size = entry.cachedSize();
+            mOpenEntries.put(name, entry);
+        }
+        if (entry.bufferSize() != bufferSize) {
+            // Another open source is using a different block size, don't share it.
+            return null;
+        }
+        entryInfo.openCount++;
+        return entry;
+    }
+
+    void close(PersistentCacheEntry entry) {
+        synchronized (this) {
+            EntryInfo entryInfo = mEntries.get(entry.name());
+            if (entryInfo != null && --entryInfo.openCount > 0) {
+                return;
+            }
+            mOpenEntries.remove(entry.name());
+        }
+        // Not with this locked, entries lock themselves and then this when writing blocks.
+        entry.closeFiles();
+    }
+
+    // Reserve space for a new block, discarding least recently used entries that aren't open if needed.
+    synchronized boolean reserve(PersistentCacheEntry entry, long bytes) {
+        Iterator<Map.Entry<String, EntryInfo>> iterator = mEntries.entrySet().iterator();
+        while (mTotalSize + bytes > mMaxSize && iterator.hasNext()) {
+            Map.Entry<String, EntryInfo> mapEntry = iterator.next();
+            EntryInfo entryInfo = mapEntry.getValue();
+            if (entryInfo.openCount == 0) {
+                BmdsLog.d(TAG, "Discarding cache entry: " + mapEntry.getKey());
+                PersistentCacheEntry.delete(mDirectory, mapEntry.getKey());
+                mTotalSize -= entryInfo.size;
+                iterator.remove();
+            }
+        }
+        if (mTotalSize + bytes > mMaxSize) {
+            return false;
+        }
+        EntryInfo entryInfo = mEntries.get(entry.name());
+        if (entryInfo == null) {
+            return false;
+        }
+        entryInfo.size += bytes;
+        mTotalSize += bytes;
+        return true;
+    }
+
+    // Give back space for blocks an open entry has dropped.
+    synchronized void release(PersistentCacheEntry entry, long bytes) {
+        EntryInfo entryInfo = mEntries.get(entry.name());
+        if (entryInfo != null) {
+            bytes = Math.min(bytes, entryInfo.size);
+            entryInfo.size -= bytes;
+            mTotalSize -= bytes;
+        }
+    }
+
+    synchronized long totalSize() {
+        return mTotalSize;
+    }
+}
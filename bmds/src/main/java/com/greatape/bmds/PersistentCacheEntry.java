@@ -0,0 +1,262 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.Locale;
+
+/**
+ * The cached blocks for a single source. Blocks are stored at their natural offset in a sparse data
+ * file, the index file records the source key, block size, source length and a bit per block present.
+ *
+ * @author Steve Townsend
+ */
+class PersistentCacheEntry {
+    private static final String TAG = "PersistentCacheEntry";
+
+    static final String IndexSuffix = ".idx";
+    private static final String DataSuffix = ".data";
+    private static final int IndexMagic = 0x424d4443;
+    private static final int IndexVersion = 1;
+    // Number of new blocks between index writes, so little is lost if we never get to close().
+    private static final int SaveIndexInterval = 32;
+
+    private final PersistentCache mPersistentCache;
+    private final String mName;
+    private final String mCacheKey;
+    private final File mIndexFile;
+    private final File mDataFile;
+    private int mBufferSize;
+    private long mSourceLength;
+    private BitSet mPresentBlocks;
+    private RandomAccessFile mRandomAccessFile;
+    private int mUnsavedBlocks;
+    // Set once the files are closed, a late read or write mustn't open them again.
+    private boolean mClosed;
+
+    PersistentCacheEntry(PersistentCache persistentCache, File directory, String name, String cacheKey, int bufferSize) {
+        mPersistentCache = persistentCache;
+        mName = name;
+        mCacheKey = cacheKey;
+        mIndexFile = new File(directory, name + IndexSuffix);
+        mDataFile = new File(directory, name + DataSuffix);
+        mBufferSize = bufferSize;
+        mSourceLength = -1;
+        mPresentBlocks = new BitSet();
+        if (!readIndex()) {
+            delete(directory, name);
+        }
+        // Touch the index so it counts as recently used next time the cache directory is scanned.
+        if (mIndexFile.exists() && !mIndexFile.setLastModified(System.currentTimeMillis())) {
+            BmdsLog.w(TAG, "Unable to update last modified: " + mIndexFile);
+        }
+    }
+
+    String name() {
+        return mName;
+    }
+
+    int bufferSize() {
+        return mBufferSize;
+    }
+
+    synchronized long cachedSize() {
+        return (long) mPresentBlocks.cardinality() * mBufferSize;
+    }
+
+    // Source length recorded when the blocks were cached, or -1 if not known.
+    synchronized long sourceLength() {
+        return mSourceLength;
+    }
+
+    synchronized boolean contains(int blockIndex) {
+        return mPresentBlocks.get(blockIndex);
+    }
+
+    synchronized boolean read(int blockIndex, CacheBlock cacheBlock) {
+        if (mClosed || !mPresentBlocks.get(blockIndex) || mSourceLength < 0) {
+            return false;
+        }
+        long position = (long) blockIndex * mBufferSize;
+        int len = (int) Math.min(mBufferSize, mSourceLength - position);
+        try {
+            cacheBlock.loadFrom(dataChannel(), position, len);
+        } catch (IOException e) {
+            BmdsLog.e(TAG, "Failed to read cached block: " + e.getMessage());
+            mPresentBlocks.clear(blockIndex);
+            mPersistentCache.release(this, mBufferSize);
+            return false;
+        }
+        cacheBlock.blockIndex = blockIndex;
+        return true;
+    }
+
+    synchronized void write(CacheBlock cacheBlock, long sourceLength) {
+        int blockIndex = cacheBlock.blockIndex;
+        if (mClosed || mPresentBlocks.get(blockIndex)) {
+            return;
+        }
+        if (mSourceLength != sourceLength) {
+            if (mSourceLength >= 0) {
+                // The source has changed under the same key, nothing we have is valid any more.
+                BmdsLog.w(TAG, "Source length changed, discarding cached blocks: " + mName);
+                mPersistentCache.release(this, cachedSize());
+                mPresentBlocks.clear();
+            }
+            mSourceLength = sourceLength;
+        }
+        if (!mPersistentCache.reserve(this, mBufferSize)) {
+            return;
+        }
+        try {
+            cacheBlock.writeTo(dataChannel(), (long) blockIndex * mBufferSize);
+        } catch (IOException e) {
+            BmdsLog.e(TAG, "Failed to write cached block: " + e.getMessage());
+            mPersistentCache.release(this, mBufferSize);
+            return;
+        }
+        mPresentBlocks.set(blockIndex);
+        if (++mUnsavedBlocks >= SaveIndexInterval) {
+            writeIndex();
+        }
+    }
+
+    void close() {
+        mPersistentCache.close(this);
+    }
+
+    synchronized void closeFiles() {
+        mClosed = true;
+        if (mUnsavedBlocks > 0) {
+            writeIndex();
+        }
+        if (mRandomAccessFile != null) {
+            try {
+                mRandomAccessFile.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mRandomAccessFile = null;
+        }
+    }
+
+    private FileChannel dataChannel() throws IOException {
+        if (mRandomAccessFile == null) {
+            mRandomAccessFile = new RandomAccessFile(mDataFile, "rw");
+        }
+        return mRandomAccessFile.getChannel();
+    }
+
+    private boolean readIndex() {
+        if (!mIndexFile.exists()) {
+            return true;
+        }
+        try (DataInputStream inputStream = new DataInputStream(new FileInputStream(mIndexFile))) {
+            if (inputStream.readInt() != IndexMagic || inputStream.readInt() != IndexVersion) {
+                return false;
+            }
+            if (!mCacheKey.equals(inputStream.readUTF()) || inputStream.readInt() != mBufferSize) {
+                return false;
+            }
+            mSourceLength = inputStream.readLong();
+            long[] words = new long[inputStream.readInt()];
+            for (int index = 0; index < words.length; index++) {
+                words[index] = inputStream.readLong();
+            }
+            mPresentBlocks = BitSet.valueOf(words);
+            return mDataFile.exists() || mPresentBlocks.isEmpty();
+        } catch (IOException e) {
+            BmdsLog.e(TAG, "Failed to read index: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void writeIndex() {
+        File tempFile = new File(mIndexFile.getPath() + ".tmp");
+        try (DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(tempFile))) {
+            outputStream.writeInt(IndexMagic);
+            outputStream.writeInt(IndexVersion);
+            outputStream.writeUTF(mCacheKey);
+            outputStream.writeInt(mBufferSize);
+            outputStream.writeLong(mSourceLength);
+            long[] words = mPresentBlocks.toLongArray();
+            outputStream.writeInt(words.length);
+            for (long word : words) {
+                outputStream.writeLong(word);
+            }
+        } catch (IOException e) {
+            BmdsLog.e(TAG, "Failed to write index: " + e.getMessage());
+            return;
+        }
+        if (!tempFile.renameTo(mIndexFile)) {
+            BmdsLog.e(TAG, "Failed to replace index: " + mIndexFile);
+            return;
+        }
+        mUnsavedBlocks = 0;
+    }
+
+    // Size of the blocks recorded in an index file, or -1 if it can't be read.
+    static long readCachedSize(File indexFile) {
+        try (DataInputStream inputStream = new DataInputStream(new FileInputStream(indexFile))) {
+            if (inputStream.readInt() != IndexMagic || inputStream.readInt() != IndexVersion) {
+                return -1;
+            }
+            inputStream.readUTF();
+            int bufferSize = inputStream.readInt();
+            inputStream.readLong();
+            int blockCount = 0;
+            int wordCount = inputStream.readInt();
+            for (int index = 0; index < wordCount; index++) {
+                blockCount += Long.bitCount(inputStream.readLong());
+            }
+            return (long) blockCount * bufferSize;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    static void delete(File directory, String name) {
+        File indexFile = new File(directory, name + IndexSuffix);
+        File dataFile = new File(directory, name + DataSuffix);
+        if ((indexFile.exists() && !indexFile.delete()) || (dataFile.exists() && !dataFile.delete())) {
+            BmdsLog.w(TAG, "Failed to delete cache entry: " + name);
+        }
+    }
+
+    static String nameForKey(String cacheKey) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(cacheKey.getBytes(StandardCharsets.UTF_8));
+            StringBuilder stringBuilder = new StringBuilder();
+            for (byte hashByte : hash) {
+                stringBuilder.append(String.format(Locale.ENGLISH, "%02x", hashByte));
+            }
+            return stringBuilder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(cacheKey.hashCode());
+        }
+    }
+}
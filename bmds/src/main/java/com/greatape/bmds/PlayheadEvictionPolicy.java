@@ -0,0 +1,167 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+import java.util.Arrays;
+
+/**
+ * Wraps another EvictionPolicy, first purging blocks that have already been played, more than the
+ * back window behind a read position, and protecting the blocks just ahead of each read position.
+ * Up to MaxPlayheads read positions are tracked, so several streams reading the same source are
+ * each treated as a playhead. The ahead window follows the source's current cache ahead, and the
+ * resident blocks are kept sorted so the played blocks are found without scanning them all.
+ *
+ * @author Steve Townsend
+ */
+class PlayheadEvictionPolicy implements EvictionPolicy {
+    private static final int MaxPlayheads = 4;
+
+    interface AheadWindow {
+        // Blocks cached ahead of a read position, called with the owning MediaCache locked.
+        int size();
+    }
+
+    private final EvictionPolicy mBasePolicy;
+    private final int mBackWindow;
+    private final AheadWindow mAheadWindow;
+    private final int[] mPlayheads;
+    private final long[] mPlayheadUseCounts;
+    private final int[] mSortedPlayheads;
+    private int mPlayheadCount;
+    private long mUseCount;
+    // Resident blocks in index order, the first mResidentCount are valid.
+    private int[] mResident;
+    private int mResidentCount;
+    // Only valid during selectBlockToPurge().
+    private int mAheadSize;
+    private BlockFilter mOuterFilter;
+    private final BlockFilter mProtectAheadFilter;
+
+    PlayheadEvictionPolicy(EvictionPolicy basePolicy, int backWindow, int aheadWindow) {
+        this(basePolicy, backWindow, () -> aheadWindow);
+    }
+
+    PlayheadEvictionPolicy(EvictionPolicy basePolicy, int backWindow, AheadWindow aheadWindow) {
+        mBasePolicy = basePolicy;
+        mBackWindow = Math.max(0, backWindow);
+        mAheadWindow = aheadWindow;
+        mPlayheads = new int[MaxPlayheads];
+        mPlayheadUseCounts = new long[MaxPlayheads];
+        mSortedPlayheads = new int[MaxPlayheads];
+        mResident = new int[16];
+        mProtectAheadFilter = blockIndex -> mOuterFilter.canPurge(blockIndex) && !isAheadOfPlayhead(blockIndex);
+    }
+
+    @Override
+    public void blockLoaded(int blockIndex) {
+        int pos = Arrays.binarySearch(mResident, 0, mResidentCount, blockIndex);
+        if (pos < 0) {
+            pos = -pos - 1;
+            if (mResidentCount == mResident.length) {
+                mResident = Arrays.copyOf(mResident, mResidentCount * 2);
+            }
+            System.arraycopy(mResident, pos, mResident, pos + 1, mResidentCount - pos);
+            mResident[pos] = blockIndex;
+            mResidentCount++;
+        }
+        mBasePolicy.blockLoaded(blockIndex);
+    }
+
+    @Override
+    public void blockUsed(int blockIndex) {
+        updatePlayheads(blockIndex);
+        mBasePolicy.blockUsed(blockIndex);
+    }
+
+    @Override
+    public void blockRemoved(int blockIndex) {
+        int pos = Arrays.binarySearch(mResident, 0, mResidentCount, blockIndex);
+        if (pos >= 0) {
+            System.arraycopy(mResident, pos + 1, mResident, pos, mResidentCount - pos - 1);
+            mResidentCount--;
+        }
+        mBasePolicy.blockRemoved(blockIndex);
+    }
+
+    @Override
+    public int selectBlockToPurge(BlockTable blockTable, BlockFilter filter) {
+        mAheadSize = Math.max(0, mAheadWindow.size());
+        int blockToPurge = -1;
+        int maxBehind = 0;
+        // The blocks furthest behind a playhead are the lowest ones between it and the ahead
+        // window of the playhead before it.
+        System.arraycopy(mPlayheads, 0, mSortedPlayheads, 0, mPlayheadCount);
+        Arrays.sort(mSortedPlayheads, 0, mPlayheadCount);
+        for (int index = 0; index < mPlayheadCount; index++) {
+            int playhead = mSortedPlayheads[index];
+            int first = index == 0 ? 0 : mSortedPlayheads[index - 1] + mAheadSize + 1;
+            int last = playhead - mBackWindow - 1;
+            int pos = Arrays.binarySearch(mResident, 0, mResidentCount, first);
+            for (pos = pos < 0 ? -pos - 1 : pos; pos < mResidentCount && mResident[pos] <= last; pos++) {
+                int blockIndex = mResident[pos];
+                if (filter.canPurge(blockIndex)) {
+                    int behind = playhead - mBackWindow - blockIndex;
+                    if (behind > maxBehind) {
+                        maxBehind = behind;
+                        blockToPurge = blockIndex;
+                    }
+                    break;
+                }
+            }
+        }
+        if (blockToPurge >= 0) {
+            return blockToPurge;
+        }
+        mOuterFilter = filter;
+        blockToPurge = mBasePolicy.selectBlockToPurge(blockTable, mProtectAheadFilter);
+        mOuterFilter = null;
+        if (blockToPurge < 0) {
+            // Everything left is ahead of a playhead, let the base policy choose between them.
+            blockToPurge = mBasePolicy.selectBlockToPurge(blockTable, filter);
+        }
+        return blockToPurge;
+    }
+
+    private boolean isAheadOfPlayhead(int blockIndex) {
+        for (int index = 0; index < mPlayheadCount; index++) {
+            int playhead = mPlayheads[index];
+            if (blockIndex >= playhead && blockIndex <= playhead + mAheadSize) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void updatePlayheads(int blockIndex) {
+        int aheadSize = Math.max(0, mAheadWindow.size());
+        mUseCount++;
+        int oldest = 0;
+        for (int index = 0; index < mPlayheadCount; index++) {
+            int playhead = mPlayheads[index];
+            // A read near an existing playhead is the same stream moving on.
+            if (blockIndex >= playhead - mBackWindow && blockIndex <= playhead + aheadSize + 1) {
+                mPlayheads[index] = blockIndex;
+                mPlayheadUseCounts[index] = mUseCount;
+                return;
+            }
+            if (mPlayheadUseCounts[index] < mPlayheadUseCounts[oldest]) {
+                oldest = index;
+            }
+        }
+        int slot = mPlayheadCount < MaxPlayheads ? mPlayheadCount++ : oldest;
+        mPlayheads[slot] = blockIndex;
+        mPlayheadUseCounts[slot] = mUseCount;
+    }
+}
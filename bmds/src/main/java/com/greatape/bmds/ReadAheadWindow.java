@@ -0,0 +1,69 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+/**
+ * Number of blocks to cache ahead of the read position. Grows while reads stay sequential and the
+ * blocks cached ahead get used, shrinks after seeks and when cached ahead blocks are purged without
+ * ever being read. Not thread safe, MediaCache calls it with itself locked.
+ *
+ * @author Steve Townsend
+ */
+class ReadAheadWindow {
+    private final int mMinSize;
+    private final int mMaxSize;
+    private int mSize;
+    private int mLastBlock;
+
+    // A fixed window when minSize and maxSize match.
+    ReadAheadWindow(int initialSize, int minSize, int maxSize) {
+        mMinSize = Math.max(0, minSize);
+        mMaxSize = Math.max(mMinSize, maxSize);
+        mSize = clamp(initialSize);
+        mLastBlock = -1;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    // Returns true if the read was a seek.
+    boolean blockRead(int blockIndex) {
+        return blockRead(blockIndex, false);
+    }
+
+    // A jump that was predicted, e.g. by the container index between interleaved tracks, isn't a seek.
+    boolean blockRead(int blockIndex, boolean predicted) {
+        boolean seek = !predicted && mLastBlock >= 0 && (blockIndex < mLastBlock - 1 || blockIndex > mLastBlock + mSize + 1);
+        if (seek) {
+            // What we cached ahead is most likely wasted so back off quickly.
+            mSize = clamp(mSize / 2);
+        }
+        mLastBlock = blockIndex;
+        return seek;
+    }
+
+    void cachedAheadBlockUsed() {
+        mSize = clamp(mSize + 1);
+    }
+
+    void cachedAheadBlockWasted() {
+        mSize = clamp(mSize - 1);
+    }
+
+    private int clamp(int size) {
+        return Math.max(mMinSize, Math.min(mMaxSize, size));
+    }
+}
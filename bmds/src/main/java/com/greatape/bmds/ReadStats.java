@@ -14,50 +14,52 @@
  */
 package com.greatape.bmds;
 
-import android.util.SparseArray;
 import android.util.SparseIntArray;
-
-import java.util.Set;
+import android.util.SparseLongArray;
 
 /**
  * @author Steve Townsend
  */
 public class ReadStats {
     private final SparseIntArray mLoadCounts;
-    private final SparseArray<Long> mLastLoadTimes;
-    private final SparseArray<Long> mLastUsedTimes;
+    private final SparseLongArray mLastLoadTimes;
+    private final SparseLongArray mLastUsedTimes;
 
     ReadStats() {
         mLoadCounts = new SparseIntArray();
-        mLastLoadTimes = new SparseArray<>();
-        mLastUsedTimes = new SparseArray<>();
+        mLastLoadTimes = new SparseLongArray();
+        mLastUsedTimes = new SparseLongArray();
     }
 
+    // Times are from System.nanoTime(), millisecond times were too coarse to separate most blocks.
     void blockLoaded(int blockIndex) {
         mLoadCounts.put(blockIndex, mLoadCounts.get(blockIndex) + 1);
-        mLastLoadTimes.put(blockIndex, System.currentTimeMillis());
+        mLastLoadTimes.put(blockIndex, System.nanoTime());
     }
 
     void blockUsed(int blockIndex) {
-        mLastUsedTimes.put(blockIndex, System.currentTimeMillis());
+        mLastUsedTimes.put(blockIndex, System.nanoTime());
     }
 
-    int selectBlockToPurge(Set<Integer> integers, int currentLoad) {
+    int selectBlockToPurge(BlockTable blockTable, EvictionPolicy.BlockFilter filter) {
         long maxScore = 0;
         int blockToPurge = -1;
-        long now = System.currentTimeMillis();
-        for(int blockIndex : integers) {
-            if (blockIndex == currentLoad) {
+        long now = System.nanoTime();
+        for(int slot = 0; slot < blockTable.capacity(); slot++) {
+            CacheBlock cacheBlock = blockTable.slotAt(slot);
+            if (cacheBlock == null) {
                 continue;
             }
-            Long lastUsed = mLastUsedTimes.get(blockIndex);
-            if (lastUsed == null) {
-                lastUsed = mLastLoadTimes.get(blockIndex);
+            int blockIndex = cacheBlock.blockIndex;
+            if (!filter.canPurge(blockIndex)) {
+                continue;
             }
+            // nanoTime() can be negative, so no value can mean never used.
+            long lastUsed = mLastUsedTimes.indexOfKey(blockIndex) >= 0 ? mLastUsedTimes.get(blockIndex) : mLastLoadTimes.get(blockIndex);
             long score = now - lastUsed;
-            int loadCount = mLoadCounts.get(blockIndex);
+            int loadCount = Math.max(1, mLoadCounts.get(blockIndex));
             score /= loadCount;
-            if (score > maxScore) {
+            if (blockToPurge < 0 || score > maxScore) {
                 maxScore = score;
                 blockToPurge = blockIndex;
             }
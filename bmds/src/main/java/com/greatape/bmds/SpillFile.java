@@ -0,0 +1,135 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+import android.util.SparseIntArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Second tier cache for blocks purged from a MediaCache, backed by a memory mapped file in local
+ * storage so seeking back to a purged block doesn't need another round trip to the source.
+ * Slots are re-used in the order they were filled, so the oldest spilled block is lost first.
+ *
+ * @author Steve Townsend
+ */
+class SpillFile {
+    private static final String TAG = "SpillFile";
+
+    private final File mDirectory;
+    private final int mBufferSize;
+    private final int mMaxBlocks;
+    private File mFile;
+    private RandomAccessFile mRandomAccessFile;
+    private MappedByteBuffer mMappedBuffer;
+    private SparseIntArray mBlockSlots;
+    private int[] mSlotBlocks;
+    private int[] mSlotLengths;
+    private int mNextSlot;
+    private boolean mFailed;
+    // Once closed writes are dropped, rather than creating a new file nobody would delete.
+    private boolean mClosed;
+
+    SpillFile(File directory, int bufferSize, int maxBlocks) {
+        mDirectory = directory;
+        mBufferSize = bufferSize;
+        // A single mapping is limited to 2GB.
+        mMaxBlocks = Math.min(maxBlocks, Integer.MAX_VALUE / bufferSize);
+        mBlockSlots = new SparseIntArray();
+    }
+
+    synchronized boolean contains(int blockIndex) {
+        return mBlockSlots.indexOfKey(blockIndex) >= 0;
+    }
+
+    synchronized void write(CacheBlock cacheBlock) {
+        if (mBlockSlots.indexOfKey(cacheBlock.blockIndex) >= 0 || !open()) {
+            return;
+        }
+        int slot = mNextSlot;
+        mNextSlot = (mNextSlot + 1) % mMaxBlocks;
+        if (mSlotBlocks[slot] >= 0) {
+            mBlockSlots.delete(mSlotBlocks[slot]);
+        }
+        mMappedBuffer.position(slot * mBufferSize);
+        cacheBlock.writeTo(mMappedBuffer);
+        mSlotBlocks[slot] = cacheBlock.blockIndex;
+        mSlotLengths[slot] = cacheBlock.length;
+        mBlockSlots.put(cacheBlock.blockIndex, slot);
+    }
+
+    // Returns false if the block is no longer available, it may have been overwritten since contains() was checked.
+    synchronized boolean read(int blockIndex, CacheBlock cacheBlock) {
+        int slot = mBlockSlots.get(blockIndex, -1);
+        if (slot < 0) {
+            return false;
+        }
+        mMappedBuffer.position(slot * mBufferSize);
+        cacheBlock.loadFrom(mMappedBuffer, mSlotLengths[slot]);
+        cacheBlock.blockIndex = blockIndex;
+        return true;
+    }
+
+    private boolean open() {
+        if (mMappedBuffer != null) {
+            return true;
+        }
+        if (mClosed || mFailed || mMaxBlocks <= 0) {
+            return false;
+        }
+        try {
+            mFile = File.createTempFile("bmds", ".spill", mDirectory);
+            mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+            long fileSize = (long) mMaxBlocks * mBufferSize;
+            mRandomAccessFile.setLength(fileSize);
+            mMappedBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        } catch (IOException e) {
+            // Carry on without the spill tier rather than fail playback.
+            BmdsLog.e(TAG, "Failed to create spill file: " + e.getMessage());
+            mFailed = true;
+            close();
+            return false;
+        }
+        mSlotBlocks = new int[mMaxBlocks];
+        Arrays.fill(mSlotBlocks, -1);
+        mSlotLengths = new int[mMaxBlocks];
+        return true;
+    }
+
+    synchronized void close() {
+        mClosed = true;
+        mMappedBuffer = null;
+        mBlockSlots.clear();
+        if (mRandomAccessFile != null) {
+            try {
+                mRandomAccessFile.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mRandomAccessFile = null;
+        }
+        if (mFile != null) {
+            if (!mFile.delete()) {
+                BmdsLog.w(TAG, "Failed to delete spill file: " + mFile);
+            }
+            mFile = null;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/* Copyright 2017 Great Ape Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greatape.bmds;
+
+/**
+ * Window TinyLFU (Einziger, Friedman and Manes). New blocks enter a small LRU window, blocks leaving
+ * the window must have been used more often than the main cache's victim to be admitted, otherwise
+ * they are purged instead. The main cache is a segmented LRU of probation and protected blocks,
+ * with use frequencies estimated by a FrequencySketch that is periodically aged.
+ *
+ * @author Steve Townsend
+ */
+class TinyLfuEvictionPolicy implements EvictionPolicy {
+    private final BlockList mWindow;
+    private final BlockList mProbation;
+    private final BlockList mProtected;
+    private final int mMaxWindow;
+    private final int mMaxProtected;
+    private final FrequencySketch mSketch;
+    // Most recent block moved from the window to probation that hasn't yet been through admission.
+    private int mCandidate;
+
+    TinyLfuEvictionPolicy(int capacity) {
+        capacity = Math.max(2, capacity);
+        mMaxWindow = Math.max(1, capacity / 100);
+        mMaxProtected = (capacity - mMaxWindow) * 80 / 100;
+        mWindow = new BlockList(mMaxWindow + 1);
+        mProbation = new BlockList(capacity + 1);
+        mProtected = new BlockList(mMaxProtected + 1);
+        mSketch = new FrequencySketch(capacity);
+        mCandidate = -1;
+    }
+
+    @Override
+    public void blockLoaded(int blockIndex) {
+        if (mWindow.contains(blockIndex) || mProbation.contains(blockIndex) || mProtected.contains(blockIndex)) {
+            blockUsed(blockIndex);
+            return;
+        }
+        mWindow.addFirst(blockIndex);
+        if (mWindow.size() > mMaxWindow) {
+            int candidate = mWindow.lastBlock();
+            mWindow.remove(candidate);
+            mProbation.addFirst(candidate);
+            mCandidate = candidate;
+        }
+    }
+
+    @Override
+    public void blockUsed(int blockIndex) {
+        mSketch.increment(blockIndex);
+        if (mWindow.moveToFront(blockIndex) || mProtected.moveToFront(blockIndex)) {
+            return;
+        }
+        if (mProbation.remove(blockIndex)) {
+            mProtected.addFirst(blockIndex);
+            if (mProtected.size() > mMaxProtected) {
+                int demoted = mProtected.lastBlock();
+                mProtected.remove(demoted);
+                mProbation.addFirst(demoted);
+            }
+        }
+    }
+
+    @Override
+    public void blockRemoved(int blockIndex) {
+        if (!mWindow.remove(blockIndex) && !mProbation.remove(blockIndex)) {
+            mProtected.remove(blockIndex);
+        }
+        // Whichever of the candidate and victim survived, admission for the candidate is decided.
+        mCandidate = -1;
+    }
+
+    @Override
+    public int selectBlockToPurge(BlockTable blockTable, BlockFilter filter) {
+        int victim = EvictionPolicy.lastPurgeable(mProbation, filter);
+        if (mCandidate >= 0 && mCandidate != victim && mProbation.contains(mCandidate) && filter.canPurge(mCandidate)) {
+            if (victim < 0 || mSketch.frequency(mCandidate) <= mSketch.frequency(victim)) {
+                return mCandidate;
+            }
+            return victim;
+        }
+        if (victim < 0) {
+            victim = EvictionPolicy.lastPurgeable(mProtected, filter);
+        }
+        if (victim < 0) {
+            victim = EvictionPolicy.lastPurgeable(mWindow, filter);
+        }
+        return victim;
+    }
+}